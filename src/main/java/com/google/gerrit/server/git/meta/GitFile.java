@@ -14,6 +14,8 @@
 
 package com.google.gerrit.server.git.meta;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.FileNameKey;
 import com.google.gerrit.entities.Project;
@@ -22,13 +24,18 @@ import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Set;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.RawParseUtils;
 
-/** A GitFile is a text file (UTF8) from a git repository */
+/** A GitFile is a text file (UTF8), or a binary file, from a git repository */
 public class GitFile extends VersionedMetaData {
   public interface Factory {
     GitFile create(@Assisted FileNameKey file);
@@ -41,6 +48,9 @@ public class GitFile extends VersionedMetaData {
   protected String file;
 
   public String text;
+  protected byte[] raw;
+  protected final Set<String> removedFiles = new HashSet<>();
+  protected ObjectId expectedRevision;
 
   @Inject
   public GitFile(
@@ -65,10 +75,25 @@ public class GitFile extends VersionedMetaData {
 
   public RevCommit write(String fileContent, String commitMessage)
       throws ConfigInvalidException, IOException, NoSuchProjectException {
+    RevCommit commit =
+        write(fileContent == null ? null : fileContent.getBytes(UTF_8), commitMessage);
+    text = fileContent;
+    return commit;
+  }
+
+  public RevCommit write(byte[] fileContent, String commitMessage)
+      throws ConfigInvalidException, IOException, NoSuchProjectException {
     Project.NameKey project = branch.project();
     try (MetaDataUpdate md = metaDataUpdateFactory.create(project)) {
       load(md);
-      text = fileContent;
+      if (expectedRevision != null) {
+        ObjectId current = revision == null ? ObjectId.zeroId() : revision;
+        if (!expectedRevision.equals(current)) {
+          throw new ConcurrentModificationException(
+              getRefName() + " is at " + current.name() + ", not " + expectedRevision.name());
+        }
+      }
+      raw = fileContent;
       md.getCommitBuilder().setCommitter(metaDataUpdateFactory.getUserPersonIdent());
       md.setMessage(commitMessage);
       return commit(md);
@@ -85,6 +110,16 @@ public class GitFile extends VersionedMetaData {
     this.file = fileName;
   }
 
+  /** Fail the next write unless the branch is still at revision (zeroId for a missing branch). */
+  public void setExpectedRevision(ObjectId revision) {
+    this.expectedRevision = revision;
+  }
+
+  /** Remove fileName from the branch with the next write. */
+  public void removeFile(String fileName) {
+    removedFiles.add(fileName);
+  }
+
   @Override
   protected String getRefName() {
     return branch.branch();
@@ -92,12 +127,16 @@ public class GitFile extends VersionedMetaData {
 
   @Override
   protected void onLoad() throws IOException {
-    text = readUTF8(file);
+    raw = readFile(file);
+    text = RawParseUtils.decode(raw);
   }
 
   @Override
   protected boolean onSave(CommitBuilder commit) throws IOException {
-    saveUTF8(file, text);
+    saveFile(file, raw);
+    for (String removed : removedFiles) {
+      saveFile(removed, null);
+    }
     return true;
   }
 }
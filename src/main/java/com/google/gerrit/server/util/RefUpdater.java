@@ -28,11 +28,22 @@ import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
 
 public class RefUpdater {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
@@ -108,17 +119,54 @@ public class RefUpdater {
     update(args);
   }
 
+  /** Force update the branch, but only if it still points to oldRefId. */
+  public void forceUpdate(
+      BranchNameKey branch, ObjectId oldRefId, ObjectId newRefId, String refLogMessage)
+      throws IOException, NoSuchProjectException {
+    Args args = new Args(branch);
+    args.expectedOldObjectId = oldRefId;
+    args.newObjectId = newRefId;
+    args.isForceUpdate = true;
+    args.refLogMessage = refLogMessage;
+    update(args);
+  }
+
   public void delete(BranchNameKey branch) throws IOException, NoSuchProjectException {
+    update(deleteArgs(branch));
+  }
+
+  public Args updateArgs(BranchNameKey branch, ObjectId oldRefId, ObjectId newRefId) {
+    Args args = new Args(branch);
+    args.expectedOldObjectId = oldRefId;
+    args.newObjectId = newRefId;
+    return args;
+  }
+
+  public Args deleteArgs(BranchNameKey branch) {
     Args args = new Args(branch);
     args.newObjectId = ObjectId.zeroId();
     args.isForceUpdate = true;
-    update(args);
+    return args;
   }
 
   public void update(Args args) throws IOException, NoSuchProjectException {
     new Update(args).update();
   }
 
+  /**
+   * Apply the updates with one BatchRefUpdate per project, atomically if the ref database of the
+   * project supports it. Projects are updated in the order they first appear in args.
+   */
+  public void update(Collection<Args> args) throws IOException, NoSuchProjectException {
+    Map<Project.NameKey, List<Args>> argsByProject = new LinkedHashMap<>();
+    for (Args a : args) {
+      argsByProject.computeIfAbsent(a.branch.project(), p -> new ArrayList<>()).add(a);
+    }
+    for (Map.Entry<Project.NameKey, List<Args>> e : argsByProject.entrySet()) {
+      new MultiUpdate(e.getKey(), e.getValue()).update();
+    }
+  }
+
   protected class Update {
     protected Repository repo;
     protected Args args;
@@ -207,4 +255,92 @@ public class RefUpdater {
       }
     }
   }
+
+  protected class MultiUpdate {
+    protected Repository repo;
+    protected Project.NameKey project;
+    protected List<Args> args;
+    protected BatchRefUpdate update;
+
+    protected MultiUpdate(Project.NameKey project, List<Args> args) {
+      this.project = project;
+      this.args = args;
+    }
+
+    protected void update() throws IOException, NoSuchProjectException {
+      try {
+        repo = repoManager.openRepository(project);
+        try (RevWalk walk = new RevWalk(repo)) {
+          initUpdate(walk);
+          if (!update.getCommands().isEmpty()) {
+            update.execute(walk, NullProgressMonitor.INSTANCE);
+            handleResults();
+          }
+        } catch (IOException err) {
+          log.atSevere().withCause(err).log(
+              "BatchRefUpdate failed: refs not updated in project: %s", project.get());
+          throw err;
+        } finally {
+          repo.close();
+          repo = null;
+        }
+      } catch (RepositoryNotFoundException e) {
+        throw new NoSuchProjectException(project);
+      }
+    }
+
+    protected void initUpdate(RevWalk walk) throws IOException {
+      RefDatabase refDb = repo.getRefDatabase();
+      update = refDb.newBatchUpdate();
+      update.setAtomic(refDb.performsAtomicTransactions());
+      update.setAllowNonFastForwards(true);
+      update.setRefLogIdent(args.get(0).refLogIdent);
+      for (Args a : args) {
+        ReceiveCommand cmd = newCommand(walk, a);
+        if (cmd != null) {
+          update.addCommand(cmd);
+        }
+      }
+    }
+
+    protected ReceiveCommand newCommand(RevWalk walk, Args a) throws IOException {
+      String name = a.branch.branch();
+      ObjectId oldId = a.expectedOldObjectId;
+      if (oldId == null) {
+        Ref ref = repo.exactRef(name);
+        oldId = ref == null ? ObjectId.zeroId() : ref.getObjectId();
+      }
+      if (oldId.equals(a.newObjectId)) {
+        return null; // Nothing to do, also covers deleting a missing ref
+      }
+      if (!a.isForceUpdate
+          && !oldId.equals(ObjectId.zeroId())
+          && !a.newObjectId.equals(ObjectId.zeroId())
+          && !walk.isMergedInto(walk.parseCommit(oldId), walk.parseCommit(a.newObjectId))) {
+        // Non fast forwards are allowed on the batch as a whole, so check the unforced ones here
+        throw new IOException(name + ": " + RefUpdate.Result.REJECTED.name());
+      }
+      ReceiveCommand cmd = new ReceiveCommand(oldId, a.newObjectId, name);
+      if (a.refLogMessage != null) {
+        cmd.setRefLogMessage(a.refLogMessage, true);
+      }
+      return cmd;
+    }
+
+    protected void handleResults() throws IOException {
+      for (ReceiveCommand cmd : update.getCommands()) {
+        if (cmd.getResult() != ReceiveCommand.Result.OK) {
+          throw new IOException(cmd.getRefName() + ": " + cmd.getResult().name());
+        }
+      }
+      onUpdated();
+    }
+
+    protected void onUpdated() {
+      if (userProvider.get().isIdentifiedUser()) {
+        AccountState accountState = accountCache.get(userProvider.get().getAccountId()).get();
+        gitRefUpdated.fire(project, update, accountState);
+      }
+    }
+  }
 }
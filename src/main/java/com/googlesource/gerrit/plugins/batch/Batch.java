@@ -33,6 +33,8 @@ public class Batch {
   public static class Change {
     int number;
     int patchSet;
+    /** The commit the patch set was cherry-picked to, null if it was merged. */
+    public String pickedSha1;
 
     Change(PatchSet.Id psId) {
       number = psId.changeId().get();
@@ -48,14 +50,29 @@ public class Batch {
     public String project;
     public String ref;
     public String sha1;
+    /** The tip of the branch which the batch was merged onto, null for older batches. */
+    public String baseSha1;
+
+    /** The merge strategy the changes were merged with, null for the project default. */
+    public String strategy;
+
+    /** The fast forward mode the changes were merged with, null for the default. */
+    public String fastForward;
+
     public String downloadRef;
     public List<Change> changes;
 
     public void add(PatchSet.Id psId) {
+      add(psId, null);
+    }
+
+    public void add(PatchSet.Id psId, String pickedSha1) {
       if (changes == null) {
         changes = new ArrayList<>();
       }
-      changes.add(new Batch.Change(psId));
+      Batch.Change change = new Batch.Change(psId);
+      change.pickedSha1 = pickedSha1;
+      changes.add(change);
     }
   }
 
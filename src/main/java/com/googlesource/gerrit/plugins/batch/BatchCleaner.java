@@ -110,6 +110,7 @@ public class BatchCleaner implements CancelableRunnable {
     this.userProvider = userProvider;
     list.query = new ArrayList<>();
     list.query.add("is:expired");
+    list.idsOnly = true; // Only the ids are needed to remove the batches
   }
 
   @Override
@@ -128,7 +129,8 @@ public class BatchCleaner implements CancelableRunnable {
         return;
       }
       try {
-        remover.remove(batch.id);
+        // Expired open batches are deleted too, the delete command refuses them
+        remover.delete(batch.id);
       } catch (Exception e) {
         log.atSevere().withCause(e).log("cleaning batch: %s", batch.id);
         // Ignore errors and hope someone notices the log file and fixes before the next run
@@ -20,6 +20,8 @@ import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.util.RefUpdater;
 import com.google.inject.Inject;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.eclipse.jgit.lib.ObjectId;
 
 public class BatchCloser {
@@ -45,13 +47,15 @@ public class BatchCloser {
   }
 
   protected void createDownloadRefs(Batch batch) throws IOException, NoSuchProjectException {
+    List<RefUpdater.Args> updates = new ArrayList<>();
     for (Batch.Destination dest : batch.listDestinations()) {
       dest.downloadRef = getBatchRef(batch, dest);
       Project.NameKey project = Project.nameKey(dest.project);
       BranchNameKey branch = BranchNameKey.create(project, dest.downloadRef);
       ObjectId id = ObjectId.fromString(dest.sha1);
-      refUpdater.update(branch, ObjectId.zeroId(), id);
+      updates.add(refUpdater.updateArgs(branch, ObjectId.zeroId(), id));
     }
+    refUpdater.update(updates);
   }
 
   protected String getBatchRef(Batch batch, Batch.Destination dest) {
@@ -0,0 +1,89 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.batch;
+
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import java.util.concurrent.ExecutorService;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Bounded pool of workers, sized by a setting of the plugin config and created on first use.
+ *
+ * <p>A size of 1 (or less) means that the work should be done on the calling thread.
+ */
+public abstract class BatchExecutor {
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  protected final PluginConfigFactory cfgFactory;
+  protected final WorkQueue workQueue;
+  protected final ProjectCache projectCache;
+  protected final String pluginName;
+  protected final String section;
+  protected final String name;
+  protected final String queueName;
+
+  protected ExecutorService executor;
+  protected int threads = 1;
+  protected boolean shutdown;
+
+  protected BatchExecutor(
+      PluginConfigFactory cfgFactory,
+      WorkQueue workQueue,
+      ProjectCache projectCache,
+      String pluginName,
+      String section,
+      String name,
+      String queueName) {
+    this.cfgFactory = cfgFactory;
+    this.workQueue = workQueue;
+    this.projectCache = projectCache;
+    this.pluginName = pluginName;
+    this.section = section;
+    this.name = name;
+    this.queueName = queueName;
+  }
+
+  /** Returns the pool, or null if the work should be done on the calling thread. */
+  public synchronized ExecutorService getExecutor() {
+    if (executor == null && !shutdown) {
+      int configured = Math.max(1, configuredThreads());
+      if (configured > 1) {
+        executor = workQueue.createQueue(configured, queueName);
+        threads = configured;
+      }
+    }
+    return executor;
+  }
+
+  /** Returns the number of workers of the pool, 1 when there is no pool. */
+  public synchronized int threads() {
+    return executor == null ? 1 : threads;
+  }
+
+  protected int configuredThreads() {
+    Config config = cfgFactory.getProjectPluginConfig(projectCache.getAllProjects(), pluginName);
+    return config.getInt(section, null, name, DEFAULT_THREADS);
+  }
+
+  protected synchronized void shutdown() {
+    shutdown = true;
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+}
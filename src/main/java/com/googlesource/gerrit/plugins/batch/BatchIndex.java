@@ -0,0 +1,172 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.batch;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.inject.Singleton;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * In memory index of parsed batches, keyed by batch id and the ObjectId of the batch ref.
+ *
+ * <p>The index also maps the changes and the destination branches of the indexed batches back to
+ * the ids of the batches which contain them.
+ *
+ * <p>An entry is only valid for as long as the batch ref still points to the ObjectId it was parsed
+ * from, callers are expected to look entries up with the current ref value so that only batches
+ * whose refs moved need to be parsed again.
+ *
+ * <p>The index is loaded from all the batch refs once, on plugin start, and BatchStore keeps it up
+ * to date as it writes and deletes batches, so that lookups by change or branch do not need to scan
+ * the refs. BatchStore checks the batch ref while holding the lock of the index before it changes
+ * an entry, so that concurrent scans and writes cannot leave an outdated entry behind.
+ */
+@Singleton
+public class BatchIndex {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /** Build the index once on plugin start. */
+  public static class Lifecycle implements LifecycleListener {
+    protected final BatchStore store;
+
+    @Inject
+    protected Lifecycle(BatchStore store) {
+      this.store = store;
+    }
+
+    @Override
+    public void start() {
+      try {
+        store.reindex();
+      } catch (IOException e) {
+        log.atSevere().withCause(e).log("building batch index.");
+        // The index will be loaded by the first lookup instead
+      }
+    }
+
+    @Override
+    public void stop() {}
+  }
+
+  protected static class Entry {
+    protected final ObjectId refId;
+    protected final Batch batch;
+
+    protected Entry(ObjectId refId, Batch batch) {
+      this.refId = refId.copy();
+      this.batch = batch;
+    }
+  }
+
+  protected final ConcurrentMap<String, Entry> entriesById = new ConcurrentHashMap<>();
+  protected final ConcurrentMap<Change.Id, Set<String>> idsByChange = new ConcurrentHashMap<>();
+  protected final ConcurrentMap<BranchNameKey, Set<String>> idsByBranch = new ConcurrentHashMap<>();
+  protected volatile boolean loaded;
+
+  /** Returns true once the index was loaded from all the batch refs. */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  public void setLoaded() {
+    loaded = true;
+  }
+
+  /** Returns the indexed batch if it was parsed from refId, else null. */
+  public Batch get(String id, ObjectId refId) {
+    Entry entry = entriesById.get(id);
+    if (entry != null && entry.refId.equals(refId)) {
+      return entry.batch;
+    }
+    return null;
+  }
+
+  /** Returns the indexed batch regardless of which ref value it was parsed from, or null. */
+  public Batch get(String id) {
+    Entry entry = entriesById.get(id);
+    return entry == null ? null : entry.batch;
+  }
+
+  /** Returns the ids of the indexed batches containing a patch set of the change. */
+  public Set<String> getIds(Change.Id change) {
+    return copy(idsByChange.get(change));
+  }
+
+  /** Returns the ids of the indexed batches with a destination on the branch. */
+  public Set<String> getIds(BranchNameKey branch) {
+    return copy(idsByBranch.get(branch));
+  }
+
+  public synchronized void put(String id, ObjectId refId, Batch batch) {
+    unindex(id, entriesById.put(id, new Entry(refId, batch)));
+    for (Batch.Destination dest : batch.listDestinations()) {
+      add(idsByBranch, BranchNameKey.create(dest.project, dest.ref), id);
+      if (dest.changes != null) {
+        for (Batch.Change change : dest.changes) {
+          add(idsByChange, change.toPatchSetId().changeId(), id);
+        }
+      }
+    }
+  }
+
+  public synchronized void remove(String id) {
+    unindex(id, entriesById.remove(id));
+  }
+
+  /** Returns the ids of all the indexed batches. */
+  public Set<String> getIndexedIds() {
+    return ImmutableSet.copyOf(entriesById.keySet());
+  }
+
+  protected void unindex(String id, Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    for (Batch.Destination dest : entry.batch.listDestinations()) {
+      remove(idsByBranch, BranchNameKey.create(dest.project, dest.ref), id);
+      if (dest.changes != null) {
+        for (Batch.Change change : dest.changes) {
+          remove(idsByChange, change.toPatchSetId().changeId(), id);
+        }
+      }
+    }
+  }
+
+  protected static <K> void add(ConcurrentMap<K, Set<String>> idsByKey, K key, String id) {
+    idsByKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
+  }
+
+  protected static <K> void remove(ConcurrentMap<K, Set<String>> idsByKey, K key, String id) {
+    idsByKey.computeIfPresent(
+        key,
+        (k, ids) -> {
+          ids.remove(id);
+          return ids.isEmpty() ? null : ids;
+        });
+  }
+
+  protected static Set<String> copy(Set<String> ids) {
+    return ids == null ? ImmutableSet.of() : ImmutableSet.copyOf(ids);
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.batch;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import javax.inject.Singleton;
+
+/** Bounded pool of workers used to parse batches concurrently when the index is cold. */
+@Singleton
+public class BatchLoader extends BatchExecutor {
+  public static class Lifecycle implements LifecycleListener {
+    protected final BatchLoader loader;
+
+    @Inject
+    protected Lifecycle(BatchLoader loader) {
+      this.loader = loader;
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void stop() {
+      loader.shutdown();
+    }
+  }
+
+  @Inject
+  protected BatchLoader(
+      PluginConfigFactory cfgFactory,
+      WorkQueue workQueue,
+      ProjectCache projectCache,
+      @PluginName String pluginName) {
+    super(cfgFactory, workQueue, projectCache, pluginName, "store", "loadThreads", "BatchLoader");
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.batch;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MergeConflictException;
+import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.gerrit.server.util.RefUpdater;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.batch.cli.MergeStrategyOption;
+import com.googlesource.gerrit.plugins.batch.util.MergeBuilder.FastForwardMode;
+import com.googlesource.gerrit.plugins.batch.util.MergePipeline;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.merge.MergeStrategy;
+
+/**
+ * Merges the changes of stale destinations again onto the current tips of their branches, leaving
+ * the destinations which did not go stale as they are.
+ *
+ * <p>Destinations are merged with the strategy and the fast forward mode they were merged with
+ * before, and with the default merge messages since the messages are not stored. Destinations of
+ * batches stored before the options were recorded use the defaults.
+ */
+public class BatchRebuilder {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  protected final MergePipeline.Factory pipelineFactory;
+  protected final RefUpdater refUpdater;
+  protected final BatchStore store;
+
+  @Inject
+  protected BatchRebuilder(
+      MergePipeline.Factory pipelineFactory, RefUpdater refUpdater, BatchStore store) {
+    this.pipelineFactory = pipelineFactory;
+    this.refUpdater = refUpdater;
+    this.store = store;
+  }
+
+  /**
+   * Rebuild the stale destinations onto their tips, save the batch and then move the download refs
+   * to the new merges. Nothing is saved if any of the destinations fails to merge, and the download
+   * refs are only moved once the save (which fails if the batch was modified meanwhile) succeeded,
+   * so that they never point at merges the stored batch does not record.
+   */
+  public void rebuild(
+      Batch batch, List<Batch.Destination> stale, Map<Batch.Destination, ObjectId> tips)
+      throws IOException, NoSuchProjectException, NoSuchRefException, BadRequestException,
+          MergeConflictException {
+    Map<Batch.Destination, ObjectId> merged = new HashMap<>();
+    Map<Batch.Change, ObjectId> picks = new HashMap<>();
+    for (Batch.Destination dest : stale) {
+      merged.put(dest, merge(dest, tips.get(dest), picks));
+    }
+    Map<Batch.Destination, ObjectId> previous = new HashMap<>();
+    for (Batch.Destination dest : stale) {
+      log.atInfo().log(
+          "Rebuilt %s:%s of batch %s onto %s: %s -> %s",
+          dest.project,
+          dest.ref,
+          batch.id,
+          tips.get(dest).name(),
+          dest.sha1,
+          merged.get(dest).name());
+      previous.put(dest, ObjectId.fromString(dest.sha1));
+      dest.baseSha1 = tips.get(dest).name();
+      dest.sha1 = merged.get(dest).name();
+      if (dest.changes != null) {
+        for (Batch.Change change : dest.changes) {
+          ObjectId picked = picks.get(change);
+          change.pickedSha1 = picked != null ? picked.name() : null;
+        }
+      }
+    }
+    store.save(batch);
+
+    List<RefUpdater.Args> updates = new ArrayList<>();
+    for (Batch.Destination dest : stale) {
+      if (dest.downloadRef != null) {
+        Project.NameKey project = Project.nameKey(dest.project);
+        BranchNameKey branch = BranchNameKey.create(project, dest.downloadRef);
+        RefUpdater.Args args = refUpdater.updateArgs(branch, previous.get(dest), merged.get(dest));
+        args.isForceUpdate = true; // The new merges do not contain the old ones
+        updates.add(args);
+      }
+    }
+    refUpdater.update(updates);
+  }
+
+  /**
+   * Merge the changes of the destination onto tip, in the order they were merged before, and
+   * collect the commits which the changes were cherry-picked to.
+   */
+  protected ObjectId merge(Batch.Destination dest, ObjectId tip, Map<Batch.Change, ObjectId> picks)
+      throws IOException, NoSuchRefException, BadRequestException, MergeConflictException {
+    BranchNameKey branch = BranchNameKey.create(Project.nameKey(dest.project), dest.ref);
+    MergeStrategy strategy = null;
+    if (dest.strategy != null) {
+      strategy = MergeStrategyOption.forName(dest.strategy);
+      if (strategy == null) {
+        throw new BadRequestException("Unknown merge strategy " + dest.strategy + " of " + branch);
+      }
+    }
+    FastForwardMode ffMode = FastForwardMode.fromString(dest.fastForward);
+    try (MergePipeline pipeline =
+        pipelineFactory.create(branch, tip.name(), strategy, ffMode, null)) {
+      ObjectId merged = tip;
+      if (dest.changes != null) {
+        for (Batch.Change change : dest.changes) {
+          merged = pipeline.merge(change.toPatchSetId().toRefName());
+          if (pipeline.getLastPick() != null) {
+            picks.put(change, pipeline.getLastPick());
+          }
+        }
+      }
+      pipeline.flush();
+      return merged;
+    }
+  }
+}
@@ -21,6 +21,8 @@ import com.google.gerrit.server.util.RefUpdater;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.batch.exception.NoSuchBatchException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 
 public class BatchRemover {
@@ -46,6 +48,19 @@ public class BatchRemover {
       throw new IllegalStateException(
           "Invalid Operation for Batch(" + batch.id + "): " + batch.state.toString());
     }
+    return delete(batch);
+  }
+
+  /** Delete the batch in any state, for the internal submit and expiry paths only. */
+  protected Batch delete(String id)
+      throws IllegalStateException, NoSuchBatchException, IOException, RepositoryNotFoundException,
+          NoSuchProjectException {
+    return delete(store.read(id));
+  }
+
+  protected Batch delete(Batch batch)
+      throws IOException, IllegalStateException, RepositoryNotFoundException,
+          NoSuchProjectException {
     removeDownloadRefs(batch);
     batch.state = Batch.State.DELETED;
     store.save(batch);
@@ -54,10 +69,15 @@ public class BatchRemover {
 
   protected void removeDownloadRefs(Batch batch)
       throws IOException, RepositoryNotFoundException, NoSuchProjectException {
+    List<RefUpdater.Args> deletes = new ArrayList<>();
     for (Batch.Destination dest : batch.listDestinations()) {
+      if (dest.downloadRef == null) {
+        continue; // Open batches have no download refs yet
+      }
       Project.NameKey project = Project.nameKey(dest.project);
       BranchNameKey branch = BranchNameKey.create(project, dest.downloadRef);
-      refUpdater.delete(branch);
+      deletes.add(refUpdater.deleteArgs(branch));
     }
+    refUpdater.update(deletes);
   }
 }
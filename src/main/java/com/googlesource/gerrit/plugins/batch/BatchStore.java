@@ -13,14 +13,23 @@
 // limitations under the License.
 package com.googlesource.gerrit.plugins.batch;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.FileNameKey;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.meta.GitFile;
 import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.util.RefUpdater;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -32,22 +41,64 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.googlesource.gerrit.plugins.batch.exception.NoSuchBatchException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Singleton;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.RawParseUtils;
 
 @Singleton
 public class BatchStore {
   public static final String BATCHES_REF = "refs/meta/batch/batches/";
+  public static final String OPEN_REF = "refs/batch/open/";
   public static final String FILE_NAME = "batch.json";
+  public static final String BINARY_FILE_NAME = "batch.bin";
+  protected static final String COMMIT_MESSAGE = "Batch created (batch plugin)";
+
+  /** The encodings a batch can be stored with. */
+  public enum Format {
+    /** Gson json in FILE_NAME, the original format. */
+    JSON(FILE_NAME),
+    /** The BinaryBatchCodec encoding in BINARY_FILE_NAME. */
+    BINARY(BINARY_FILE_NAME);
+
+    public final String fileName;
+
+    Format(String fileName) {
+      this.fileName = fileName;
+    }
+  }
 
   public static class AccountIdDeserializer
       implements JsonDeserializer<Account.Id>, JsonSerializer<Account.Id> {
@@ -73,6 +124,12 @@ public class BatchStore {
   protected final Project.NameKey project;
   protected final GitFile.Factory gitFileFactory;
   protected final RefUpdater refUpdater;
+  protected final BatchIndex index;
+  protected final BatchLoader loader;
+  protected final PluginConfigFactory cfgFactory;
+  protected final ProjectCache projectCache;
+  protected final String pluginName;
+  protected final Provider<PersonIdent> serverIdent;
   protected final Gson gson =
       new GsonBuilder().registerTypeAdapter(Account.Id.class, new AccountIdDeserializer()).create();
 
@@ -81,71 +138,526 @@ public class BatchStore {
       GitRepositoryManager repoManager,
       AllProjectsName project,
       GitFile.Factory gitFileFactory,
-      RefUpdater refUpdater) {
+      RefUpdater refUpdater,
+      BatchIndex index,
+      BatchLoader loader,
+      PluginConfigFactory cfgFactory,
+      ProjectCache projectCache,
+      @PluginName String pluginName,
+      @GerritPersonIdent Provider<PersonIdent> serverIdent) {
     this.repoManager = repoManager;
     this.project = project;
     this.gitFileFactory = gitFileFactory;
     this.refUpdater = refUpdater;
+    this.index = index;
+    this.loader = loader;
+    this.cfgFactory = cfgFactory;
+    this.projectCache = projectCache;
+    this.pluginName = pluginName;
+    this.serverIdent = serverIdent;
+  }
+
+  /** How much of each batch to load when finding batches. */
+  public enum Detail {
+    /** Only the batch id, from the batch ref name. */
+    ID,
+    /** The batch id, with lastModified taken from the commit time of the batch ref. */
+    REF,
+    /** The whole batch, as stored. */
+    FULL;
   }
 
-  /** Returns a list of batch objects */
+  /** Receives batches in ref order while they are being found. */
+  public interface Visitor {
+    /** Returns false to stop visiting further batches. */
+    boolean visit(Batch batch) throws IOException;
+  }
+
+  /**
+   * Returns a list of batch objects
+   *
+   * <p>When includeBatchInfo is set, the batches are shared with the index and must not be
+   * modified, use read() to get a batch to operate on.
+   */
   public List<Batch> find(boolean includeBatchInfo) throws IOException {
     List<Batch> batches = new ArrayList<>();
+    find(includeBatchInfo ? Detail.FULL : Detail.ID, b -> batches.add(b));
+    return batches;
+  }
+
+  /**
+   * Visit batch objects as they are found, without materializing the whole list.
+   *
+   * <p>Batches are loaded with at least the requested detail, a batch which is already in the index
+   * is always visited in full. Such batches are shared with the index and must not be modified, use
+   * read() to get a batch to operate on.
+   */
+  public void find(Detail detail, Visitor visitor) throws IOException {
     try (Repository repo = repoManager.openRepository(project)) {
-      for (Ref ref : repo.getRefDatabase().getRefsByPrefix(BATCHES_REF)) {
-        String id = ref.getName().substring(BATCHES_REF.length());
-        try {
-          batches.add((includeBatchInfo == true) ? read(id) : new Batch(id));
-        } catch (NoSuchBatchException e) {
-          continue;
-        }
+      List<Ref> refs = repo.getRefDatabase().getRefsByPrefix(BATCHES_REF);
+      switch (detail) {
+        case ID:
+          for (Ref ref : refs) {
+            if (!visitor.visit(new Batch(getId(ref)))) {
+              return;
+            }
+          }
+          return;
+        case REF:
+          readRefs(repo, refs, visitor);
+          return;
+        case FULL:
+        default:
+          Set<String> ids = new HashSet<>();
+          for (Ref ref : refs) {
+            ids.add(getId(ref));
+          }
+          unindexMissing(repo, ids);
+          read(repo, refs, visitor);
       }
     }
-    return batches;
+  }
+
+  /** Bring the index up to date with the batch refs, parsing only the batches which changed. */
+  public void reindex() throws IOException {
+    find(Detail.FULL, b -> true);
+    index.setLoaded();
+  }
+
+  /** Load the index unless it was already loaded, later writes keep it up to date. */
+  protected void ensureIndexed() throws IOException {
+    if (!index.isLoaded()) {
+      reindex();
+    }
+  }
+
+  /**
+   * Visit the indexed batches with the given ids in ref order. These batches are shared with the
+   * index and must not be modified.
+   */
+  public void findIndexed(Collection<String> ids, Visitor visitor) throws IOException {
+    ensureIndexed();
+    for (String id : new TreeSet<>(ids)) {
+      Batch batch = index.get(id);
+      if (batch != null && !visitor.visit(batch)) {
+        return;
+      }
+    }
+  }
+
+  /** Returns the ids of the batches containing a patch set of the change. */
+  public Set<String> findIds(Change.Id change) throws IOException {
+    ensureIndexed();
+    return index.getIds(change);
+  }
+
+  /** Returns the ids of the batches with a destination on the branch. */
+  public Set<String> findIds(BranchNameKey branch) throws IOException {
+    ensureIndexed();
+    return index.getIds(branch);
   }
 
   public void save(Batch batch) throws IOException, NoSuchProjectException {
+    Config config = getConfig();
+    boolean direct = config.getBoolean("store", null, "directWrite", false);
     if (batch.state == Batch.State.DELETED) {
-      refUpdater.delete(getBranch(batch.id));
+      BatchIndex.Entry stored = readStored(batch.id);
+      if (direct) {
+        deleteDirect(batch.id);
+      } else {
+        refUpdater.delete(getBranch(batch.id));
+      }
+      index.remove(batch.id);
+      if (stored == null || stored.batch.state == Batch.State.OPEN) {
+        updateOpenRefs(batch);
+      }
       return;
     }
+    ObjectId expected = null;
+    boolean wasOpen = false;
     if (batch.version != 0) {
-      throw new ConcurrentModificationException();
+      BatchIndex.Entry stored = checkVersion(batch);
+      expected = stored.refId;
+      wasOpen = stored.batch.state == Batch.State.OPEN;
     }
     batch.version++;
     batch.lastModified = new Date();
+    Format format = config.getEnum("store", null, "format", Format.JSON);
+    byte[] raw = encode(format, batch);
+    ObjectId commit;
+    if (direct) {
+      commit =
+          writeDirect(
+              batch.id,
+              format,
+              raw,
+              config.getBoolean("store", null, "keepHistory", true),
+              expected);
+    } else {
+      commit = write(batch.id, format, raw, expected);
+    }
+    // Index a copy, the caller still owns (and may modify) the saved batch
+    try (Repository repo = repoManager.openRepository(project)) {
+      indexIfCurrent(repo, batch.id, commit, decode(format, raw));
+    }
+    // Only open batches have open refs, leave the destination repositories of others alone
+    if (batch.state == Batch.State.OPEN || wasOpen) {
+      updateOpenRefs(batch);
+    }
+  }
+
+  /**
+   * Point a ref in each destination project at the merges of an open batch, so that gc does not
+   * prune them before the batch is closed (which creates its download refs). The refs are deleted
+   * once the batch is no longer open.
+   */
+  protected void updateOpenRefs(Batch batch) throws IOException, NoSuchProjectException {
+    List<RefUpdater.Args> updates = new ArrayList<>();
+    for (Batch.Destination dest : batch.listDestinations()) {
+      BranchNameKey branch =
+          BranchNameKey.create(Project.nameKey(dest.project), OPEN_REF + batch.id + "/" + dest.ref);
+      if (batch.state == Batch.State.OPEN && dest.sha1 != null) {
+        RefUpdater.Args args = refUpdater.updateArgs(branch, null, ObjectId.fromString(dest.sha1));
+        args.isForceUpdate = true; // A rebuilt batch does not contain its old merges
+        updates.add(args);
+      } else {
+        updates.add(refUpdater.deleteArgs(branch)); // Missing refs are skipped
+      }
+    }
+    refUpdater.update(updates);
+  }
+
+  /**
+   * Ensure that the stored batch is still at the version which was read into batch, so that an
+   * update is never based on a stale copy.
+   *
+   * @return the stored batch, and the ObjectId of the batch ref which the update must replace.
+   */
+  protected BatchIndex.Entry checkVersion(Batch batch) throws IOException {
+    BatchIndex.Entry stored = readStored(batch.id);
+    if (stored == null) {
+      throw new ConcurrentModificationException("Batch " + batch.id + " was deleted");
+    }
+    if (!batch.version.equals(stored.batch.version)) {
+      throw new ConcurrentModificationException(
+          "Batch "
+              + batch.id
+              + " is at version "
+              + stored.batch.version
+              + ", not "
+              + batch.version);
+    }
+    return stored;
+  }
+
+  /** Returns the stored batch and its ref value, or null if it is missing or unreadable. */
+  protected BatchIndex.Entry readStored(String id) throws IOException {
+    try (Repository repo = repoManager.openRepository(project);
+        RevWalk walk = new RevWalk(repo)) {
+      Ref ref = repo.exactRef(getBranch(id).branch());
+      if (ref == null) {
+        return null;
+      }
+      try {
+        return new BatchIndex.Entry(ref.getObjectId(), parse(walk, id, ref.getObjectId()));
+      } catch (NoSuchBatchException e) {
+        return null; // Treat an unreadable batch like a deleted one
+      }
+    }
+  }
+
+  protected ObjectId write(String id, Format format, byte[] raw, ObjectId expected)
+      throws IOException, NoSuchProjectException {
     try {
-      gitFileFactory
-          .create(getFileNameKey(batch.id))
-          .write(gson.toJson(batch), "Batch created (batch plugin)");
+      GitFile file = gitFileFactory.create(getFileNameKey(getBranch(id), format));
+      file.setExpectedRevision(expected);
+      for (Format other : Format.values()) {
+        if (other != format) {
+          file.removeFile(other.fileName);
+        }
+      }
+      return file.write(raw, COMMIT_MESSAGE);
     } catch (ConfigInvalidException e) { // Not real, never going to be thrown
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Write the batch with a single inserter and a single RefUpdate, bypassing MetaDataUpdate and
+   * without firing ref-updated events. Unless keepHistory is set the new commit has no parent. If
+   * expected is not null, the batch ref must still point to it.
+   */
+  protected ObjectId writeDirect(
+      String id, Format format, byte[] raw, boolean keepHistory, ObjectId expected)
+      throws IOException {
+    String refName = getBranch(id).branch();
+    try (Repository repo = repoManager.openRepository(project);
+        ObjectInserter ins = repo.newObjectInserter();
+        ObjectReader reader = ins.newReader();
+        RevWalk walk = new RevWalk(reader)) {
+      Ref ref = repo.exactRef(refName);
+      if (expected != null && (ref == null || !expected.equals(ref.getObjectId()))) {
+        throw new ConcurrentModificationException("Batch " + id + " was modified");
+      }
+      TreeFormatter tree = new TreeFormatter();
+      tree.append(format.fileName, FileMode.REGULAR_FILE, ins.insert(Constants.OBJ_BLOB, raw));
+
+      PersonIdent ident = serverIdent.get();
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(ins.insert(tree));
+      if (keepHistory && ref != null) {
+        commit.setParentId(ref.getObjectId());
+      }
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage(COMMIT_MESSAGE);
+      ObjectId commitId = ins.insert(commit);
+      ins.flush();
+
+      RefUpdate update = repo.updateRef(refName);
+      update.setExpectedOldObjectId(ref == null ? ObjectId.zeroId() : ref.getObjectId());
+      update.setNewObjectId(commitId);
+      update.setForceUpdate(true);
+      update.setRefLogIdent(ident);
+      update.setRefLogMessage(COMMIT_MESSAGE, false);
+      RefUpdate.Result result = update.update(walk);
+      switch (result) {
+        case NEW:
+        case FAST_FORWARD:
+        case FORCED:
+          return commitId;
+        case LOCK_FAILURE:
+          throw new ConcurrentModificationException("Batch " + id + " was modified");
+        default:
+          throw new IOException("Failed to write batch " + id + ": " + result.name());
+      }
+    }
+  }
+
+  protected void deleteDirect(String id) throws IOException {
+    try (Repository repo = repoManager.openRepository(project)) {
+      RefUpdate update = repo.updateRef(getBranch(id).branch());
+      update.setForceUpdate(true);
+      RefUpdate.Result result = update.delete();
+      switch (result) {
+        case FORCED:
+        case NEW:
+        case NO_CHANGE:
+          return;
+        default:
+          throw new IOException("Failed to delete batch " + id + ": " + result.name());
+      }
+    }
+  }
+
   public Batch read(String id) throws IOException, NoSuchBatchException {
+    try (Repository repo = repoManager.openRepository(project);
+        RevWalk walk = new RevWalk(repo)) {
+      Ref ref = repo.exactRef(getBranch(id).branch());
+      if (ref != null) {
+        return parse(walk, id, ref.getObjectId());
+      }
+    }
+    throw new NoSuchBatchException(id);
+  }
+
+  /**
+   * Visit the batches at refs in ref order, skipping refs without a batch.
+   *
+   * <p>Batches which are not in the index yet are parsed on the loader pool when there is more than
+   * one of them, and each one is visited as soon as it and the batches before it are available.
+   * Each worker uses its own ObjectReader (readers are not thread safe) on the shared repository.
+   */
+  protected void read(Repository repo, List<Ref> refs, Visitor visitor) throws IOException {
+    Batch[] batches = new Batch[refs.size()];
+    List<Integer> unindexed = new ArrayList<>();
+    for (int i = 0; i < refs.size(); i++) {
+      Ref ref = refs.get(i);
+      batches[i] = index.get(getId(ref), ref.getObjectId());
+      if (batches[i] == null) {
+        unindexed.add(i);
+      }
+    }
+
+    Future<?>[] pending = new Future<?>[refs.size()];
+    List<Future<?>> futures = new ArrayList<>();
+    AtomicBoolean stopped = new AtomicBoolean();
+    ExecutorService executor = unindexed.size() > 1 ? loader.getExecutor() : null;
+    if (executor != null) {
+      int threads = loader.threads();
+      int chunkSize = (unindexed.size() + threads - 1) / threads;
+      for (List<Integer> chunk : Lists.partition(unindexed, chunkSize)) {
+        Future<?> future =
+            executor.submit(
+                () -> {
+                  parse(repo, refs, chunk, batches, stopped);
+                  return null;
+                });
+        futures.add(future);
+        for (int i : chunk) {
+          pending[i] = future;
+        }
+      }
+    }
+
+    try (ObjectReader reader = repo.newObjectReader();
+        RevWalk walk = new RevWalk(reader)) {
+      for (int i = 0; i < refs.size(); i++) {
+        if (pending[i] != null) {
+          await(pending[i]);
+        } else if (batches[i] == null) { // Not using the pool, parse it here
+          parse(repo, walk, refs, i, batches);
+        }
+        if (batches[i] != null && !visitor.visit(batches[i])) {
+          return;
+        }
+      }
+    } finally {
+      // Interrupting a worker could interrupt a pack read, let running chunks stop on their own
+      stopped.set(true);
+      for (Future<?> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /** Visit the batches at refs using the index, or else the tip commits of the batch refs. */
+  protected void readRefs(Repository repo, List<Ref> refs, Visitor visitor) throws IOException {
+    try (RevWalk walk = new RevWalk(repo)) {
+      for (Ref ref : refs) {
+        String id = getId(ref);
+        Batch batch = index.get(id, ref.getObjectId());
+        if (batch == null) {
+          batch = new Batch(id);
+          RevCommit commit = walk.parseCommit(ref.getObjectId());
+          batch.lastModified = new Date(commit.getCommitTime() * 1000L);
+        }
+        if (!visitor.visit(batch)) {
+          return;
+        }
+      }
+    }
+  }
+
+  protected void await(Future<?> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("loading batches");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Parse and index the batches at the given positions of refs into batches, until stopped is set.
+   */
+  protected void parse(
+      Repository repo,
+      List<Ref> refs,
+      List<Integer> positions,
+      Batch[] batches,
+      AtomicBoolean stopped)
+      throws IOException {
+    try (ObjectReader reader = repo.newObjectReader();
+        RevWalk walk = new RevWalk(reader)) {
+      for (int i : positions) {
+        if (stopped.get()) {
+          return;
+        }
+        parse(repo, walk, refs, i, batches);
+      }
+    }
+  }
+
+  protected void parse(Repository repo, RevWalk walk, List<Ref> refs, int i, Batch[] batches)
+      throws IOException {
+    Ref ref = refs.get(i);
+    String id = getId(ref);
     try {
-      Batch batch = gson.fromJson(gitFileFactory.create(getFileNameKey(id)).read(), Batch.class);
-      if (batch != null) { // gson.fromJson() can return null without throwing an exception
-        return batch;
+      batches[i] = parse(walk, id, ref.getObjectId());
+      indexIfCurrent(repo, id, ref.getObjectId(), batches[i]);
+    } catch (NoSuchBatchException e) {
+      // Not a batch, skip it
+    }
+  }
+
+  /**
+   * Index the batch parsed from refId, unless its batch ref has moved on or is gone since. The ref
+   * is checked while holding the index lock, so that a scan which listed the ref before a save or a
+   * delete cannot replace the newer entry with an older one, or bring a deleted batch back.
+   */
+  protected void indexIfCurrent(Repository repo, String id, ObjectId refId, Batch batch)
+      throws IOException {
+    synchronized (index) {
+      Ref ref = repo.exactRef(getBranch(id).branch());
+      if (ref != null && refId.equals(ref.getObjectId())) {
+        index.put(id, refId, batch);
+      }
+    }
+  }
+
+  /** Drop the index entries of the batches which are not in ids and whose refs are gone. */
+  protected void unindexMissing(Repository repo, Set<String> ids) throws IOException {
+    synchronized (index) {
+      for (String id : index.getIndexedIds()) {
+        if (!ids.contains(id) && repo.exactRef(getBranch(id).branch()) == null) {
+          index.remove(id);
+        }
+      }
+    }
+  }
+
+  /** Parse the batch at commitId, from the binary file if there is one, else from the json. */
+  protected Batch parse(RevWalk walk, String id, ObjectId commitId)
+      throws IOException, NoSuchBatchException {
+    RevCommit commit = walk.parseCommit(commitId);
+    ObjectReader reader = walk.getObjectReader();
+    for (Format format : Arrays.asList(Format.BINARY, Format.JSON)) {
+      try (TreeWalk tw = TreeWalk.forPath(reader, format.fileName, commit.getTree())) {
+        if (tw != null) {
+          byte[] raw = reader.open(tw.getObjectId(0), Constants.OBJ_BLOB).getCachedBytes();
+          Batch batch = decode(format, raw);
+          if (batch != null) {
+            return batch;
+          }
+        }
       }
-    } catch (ConfigInvalidException e) { // Not real, never going to be thrown
-      throw new RuntimeException(e);
-    } catch (NoSuchProjectException e) {
-      // Fall through
     }
     throw new NoSuchBatchException(id);
   }
 
-  protected FileNameKey getFileNameKey(String id) {
-    return getFileNameKey(getBranch(id));
+  protected byte[] encode(Format format, Batch batch) {
+    if (format == Format.BINARY) {
+      return BinaryBatchCodec.encode(batch);
+    }
+    return gson.toJson(batch).getBytes(UTF_8);
+  }
+
+  protected Batch decode(Format format, byte[] raw) throws IOException {
+    if (format == Format.BINARY) {
+      return BinaryBatchCodec.decode(raw);
+    }
+    // gson.fromJson() can return null without throwing an exception
+    return gson.fromJson(RawParseUtils.decode(raw), Batch.class);
+  }
+
+  protected Config getConfig() {
+    return cfgFactory.getProjectPluginConfig(projectCache.getAllProjects(), pluginName);
+  }
+
+  protected String getId(Ref ref) {
+    return ref.getName().substring(BATCHES_REF.length());
   }
 
   protected BranchNameKey getBranch(String id) {
     return BranchNameKey.create(project, BATCHES_REF + id);
   }
 
-  protected FileNameKey getFileNameKey(BranchNameKey branch) {
-    return FileNameKey.create(branch, FILE_NAME);
+  protected FileNameKey getFileNameKey(BranchNameKey branch, Format format) {
+    return FileNameKey.create(branch, format.fileName);
   }
 }
@@ -0,0 +1,179 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.batch;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.inject.Singleton;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Serializes the submits of batches per destination branch, so that batches with no branch in
+ * common are submitted concurrently while the submits to a branch are done one at a time, in the
+ * order they were queued.
+ *
+ * <p>A batch holds the locks of all of its branches while it is checked and its branches are
+ * updated. The locks are taken in branch order so that batches with overlapping branches cannot
+ * deadlock.
+ *
+ * <p>The lock of a branch is only kept while batches hold or wait for it, so that branches which
+ * are no longer submitted to do not keep their locks forever.
+ */
+@Singleton
+public class BatchSubmitQueue {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  public static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+  /** The lock of a branch, with the number of batches holding or waiting for it. */
+  protected static class BranchLock {
+    // Fair so that submits to a branch are done in the order they were queued
+    protected final ReentrantLock lock = new ReentrantLock(true);
+    protected int users; // Only accessed in locksByBranch.compute()
+  }
+
+  /** The turn of a batch in the queue, which holds the locks of its branches until released. */
+  public class Permit implements AutoCloseable {
+    protected final String id;
+    protected final List<BranchNameKey> locked = new ArrayList<>();
+
+    protected Permit(String id) {
+      this.id = id;
+    }
+
+    /** Let the next batches on the branches go, while this batch is still being submitted. */
+    public void releaseBranches() {
+      for (int i = locked.size() - 1; i >= 0; i--) {
+        BranchNameKey branch = locked.get(i);
+        locksByBranch.get(branch).lock.unlock();
+        release(branch);
+      }
+      locked.clear();
+    }
+
+    @Override
+    public void close() {
+      releaseBranches();
+      submitting.remove(id);
+    }
+  }
+
+  protected final PluginConfigFactory cfgFactory;
+  protected final ProjectCache projectCache;
+  protected final String pluginName;
+  protected final ConcurrentMap<BranchNameKey, BranchLock> locksByBranch =
+      new ConcurrentHashMap<>();
+  protected final Set<String> submitting = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  protected BatchSubmitQueue(
+      PluginConfigFactory cfgFactory, ProjectCache projectCache, @PluginName String pluginName) {
+    this.cfgFactory = cfgFactory;
+    this.projectCache = projectCache;
+    this.pluginName = pluginName;
+  }
+
+  /**
+   * Wait for the turn of the batch on all of its destination branches.
+   *
+   * @throws IllegalStateException if the batch is already in the queue.
+   * @throws IOException if the batch did not get its turn within the queue timeout.
+   */
+  public Permit acquire(Batch batch) throws IOException, IllegalStateException {
+    if (!submitting.add(batch.id)) {
+      throw new IllegalStateException("Batch " + batch.id + " is already being submitted");
+    }
+    SortedSet<BranchNameKey> branches = new TreeSet<>();
+    for (Batch.Destination dest : batch.listDestinations()) {
+      branches.add(BranchNameKey.create(Project.nameKey(dest.project), dest.ref));
+    }
+    long timeout = timeout();
+    Stopwatch sw = Stopwatch.createStarted();
+    Permit permit = new Permit(batch.id);
+    try {
+      for (BranchNameKey branch : branches) {
+        ReentrantLock lock = use(branch).lock;
+        long remaining = Math.max(0, timeout - sw.elapsed(TimeUnit.MILLISECONDS));
+        boolean locked = false;
+        try {
+          locked = lock.tryLock(remaining, TimeUnit.MILLISECONDS);
+        } finally {
+          if (!locked) {
+            release(branch);
+          }
+        }
+        if (!locked) {
+          throw new IOException(
+              "Timed out waiting in the submit queue for " + branch + " of batch " + batch.id);
+        }
+        permit.locked.add(branch);
+      }
+    } catch (InterruptedException e) {
+      permit.close();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("waiting in the submit queue for batch " + batch.id);
+    } catch (IOException e) {
+      permit.close();
+      throw e;
+    }
+    long waited = sw.elapsed(TimeUnit.MILLISECONDS);
+    if (waited > 0) {
+      log.atInfo().log("Batch %s waited %d ms in the submit queue", batch.id, waited);
+    }
+    return permit;
+  }
+
+  /** Get the lock of the branch, creating it if no other batch uses it. */
+  protected BranchLock use(BranchNameKey branch) {
+    return locksByBranch.compute(
+        branch,
+        (b, branchLock) -> {
+          if (branchLock == null) {
+            branchLock = new BranchLock();
+          }
+          branchLock.users++;
+          return branchLock;
+        });
+  }
+
+  /** Stop using the lock of the branch, dropping it once no batch holds or waits for it. */
+  protected void release(BranchNameKey branch) {
+    locksByBranch.computeIfPresent(
+        branch, (b, branchLock) -> --branchLock.users == 0 ? null : branchLock);
+  }
+
+  public long timeout() {
+    Config config = cfgFactory.getProjectPluginConfig(projectCache.getAllProjects(), pluginName);
+    return config.getTimeUnit(
+        "submit", null, "queueTimeout", DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+}
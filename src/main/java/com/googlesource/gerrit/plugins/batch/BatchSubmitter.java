@@ -14,6 +14,9 @@
 
 package com.googlesource.gerrit.plugins.batch;
 
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
@@ -22,8 +25,9 @@ import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.SubmissionId;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
-import com.google.gerrit.server.PatchSetUtil;
+import com.google.gerrit.server.change.PatchSetInserter;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergedByPushOp;
 import com.google.gerrit.server.logging.RequestId;
@@ -34,6 +38,7 @@ import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.RefPermission;
 import com.google.gerrit.server.project.NoSuchProjectException;
+import com.google.gerrit.server.project.NoSuchRefException;
 import com.google.gerrit.server.update.BatchUpdate;
 import com.google.gerrit.server.update.UpdateException;
 import com.google.gerrit.server.util.RefUpdater;
@@ -41,11 +46,25 @@ import com.google.gerrit.server.util.RequestScopePropagator;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.batch.exception.NoSuchBatchException;
+import com.googlesource.gerrit.plugins.batch.exception.StaleBatchException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevWalk;
 
@@ -57,12 +76,15 @@ public class BatchSubmitter {
   protected final RequestScopePropagator requestScopePropagator;
   protected final BatchUpdate.Factory batchUpdateFactory;
   protected final MergedByPushOp.Factory mergedByPushOpFactory;
+  protected final PatchSetInserter.Factory patchSetInserterFactory;
   protected final IdentifiedUser user;
   protected final ChangeNotes.Factory notesFactory;
   protected final PermissionBackend permissionBackend;
-  protected final PatchSetUtil psUtil;
   protected final BatchStore store;
   protected final BatchRemover remover;
+  protected final BatchSubmitExecutor submitExecutor;
+  protected final BatchRebuilder rebuilder;
+  protected final BatchSubmitQueue queue;
 
   @Inject
   BatchSubmitter(
@@ -71,36 +93,154 @@ public class BatchSubmitter {
       RequestScopePropagator requestScopePropagator,
       BatchUpdate.Factory batchUpdateFactory,
       MergedByPushOp.Factory mergedByPushOpFactory,
+      PatchSetInserter.Factory patchSetInserterFactory,
       IdentifiedUser user,
       ChangeNotes.Factory notesFactory,
       PermissionBackend permissionBackend,
-      PatchSetUtil psUtil,
       BatchStore store,
-      BatchRemover remover) {
+      BatchRemover remover,
+      BatchSubmitExecutor submitExecutor,
+      BatchRebuilder rebuilder,
+      BatchSubmitQueue queue) {
     this.repoManager = repoManager;
     this.refUpdater = refUpdater;
     this.requestScopePropagator = requestScopePropagator;
     this.batchUpdateFactory = batchUpdateFactory;
     this.mergedByPushOpFactory = mergedByPushOpFactory;
+    this.patchSetInserterFactory = patchSetInserterFactory;
     this.user = user;
     this.notesFactory = notesFactory;
     this.permissionBackend = permissionBackend;
-    this.psUtil = psUtil;
     this.store = store;
     this.remover = remover;
+    this.submitExecutor = submitExecutor;
+    this.rebuilder = rebuilder;
+    this.queue = queue;
+  }
+
+  /** A step of the submit which is done for each destination. */
+  private interface DestinationStep {
+    void run(Batch.Destination dest) throws Exception;
   }
 
   public Batch submit(String id)
       throws IOException, IllegalStateException, NoSuchBatchException, NoSuchProjectException,
-          RestApiException, UpdateException, PermissionBackendException {
+          RestApiException, UpdateException, PermissionBackendException, StaleBatchException {
+    return submit(id, false);
+  }
+
+  /**
+   * Submit the batch, if parallel is set the destinations in different projects are submitted
+   * concurrently on the submit pool.
+   *
+   * <p>The batch is validated before it waits for its turn in the submit queue, so that it is
+   * validated while earlier batches on its branches are submitted. Once it is its turn, all of the
+   * destination branches are checked to still be at the tip which the batch was merged onto, and
+   * each branch is then only updated if it has not moved since it was checked. The next batches on
+   * the branches may go as soon as the branches are updated, while the changes are being closed.
+   */
+  public Batch submit(String id, boolean parallel)
+      throws IOException, IllegalStateException, NoSuchBatchException, NoSuchProjectException,
+          RestApiException, UpdateException, PermissionBackendException, StaleBatchException {
     Batch batch = store.read(id);
+    validate(batch);
+    ExecutorService executor = parallel ? submitExecutor.getExecutor() : null;
+    try (BatchSubmitQueue.Permit permit = queue.acquire(batch)) {
+      Batch queued = batch;
+      batch = store.read(id);
+      if (!batch.version.equals(queued.version)) {
+        throw new IllegalStateException("Batch " + id + " was modified while it was queued");
+      }
+      Map<Batch.Destination, ObjectId> tips = readTips(batch);
+      List<String> stale = new ArrayList<>();
+      for (Batch.Destination dest : getStaleDestinations(batch, tips)) {
+        stale.add(dest.project + ":" + dest.ref);
+      }
+      if (!stale.isEmpty()) {
+        throw new StaleBatchException(id, stale);
+      }
+      forEachDestination(batch, executor, d -> updateRef(d, tips.get(d)));
+      permit.releaseBranches();
+      forEachDestination(batch, executor, this::closeChanges);
+      remover.delete(batch);
+    }
+    return batch;
+  }
+
+  private void validate(Batch batch) throws AuthException, PermissionBackendException {
     if (batch.state == Batch.State.OPEN) {
-      throw new IllegalStateException("Cannot submit batch " + id + " in state " + batch.state);
+      throw new IllegalStateException(
+          "Cannot submit batch " + batch.id + " in state " + batch.state);
     }
     ensureCanSubmit(batch);
-    submit(batch);
-    remover.remove(batch);
-    return batch;
+  }
+
+  /**
+   * Rebuild the destinations of the batch which went stale onto the current tips of their branches,
+   * without submitting the batch.
+   *
+   * @return the rebuilt destinations, empty if none were stale.
+   */
+  public List<Batch.Destination> rebuildIfStale(Batch batch)
+      throws IOException, IllegalStateException, NoSuchBatchException, NoSuchProjectException,
+          NoSuchRefException, RestApiException, UpdateException, PermissionBackendException {
+    validate(batch);
+    // Wait for the batches being submitted to the branches, they would make the rebuild stale
+    BatchSubmitQueue.Permit permit = queue.acquire(batch);
+    try {
+      if (!store.read(batch.id).version.equals(batch.version)) {
+        throw new IllegalStateException("Batch " + batch.id + " was modified while it was queued");
+      }
+      Map<Batch.Destination, ObjectId> tips = readTips(batch);
+      List<Batch.Destination> stale = getStaleDestinations(batch, tips);
+      if (!stale.isEmpty()) {
+        rebuilder.rebuild(batch, stale, tips);
+      }
+      return stale;
+    } finally {
+      permit.close();
+    }
+  }
+
+  /** Read the current tips of the destination branches, concurrently for different projects. */
+  public Map<Batch.Destination, ObjectId> readTips(Batch batch)
+      throws IOException, NoSuchProjectException, RestApiException, UpdateException,
+          PermissionBackendException {
+    Map<Batch.Destination, ObjectId> tips = new ConcurrentHashMap<>();
+    ExecutorService executor =
+        batch.listDestinations().size() > 1 ? submitExecutor.getExecutor() : null;
+    forEachDestination(
+        batch,
+        executor,
+        dest -> {
+          Project.NameKey project = Project.nameKey(dest.project);
+          try (Repository repo = repoManager.openRepository(project)) {
+            Ref ref = repo.getRefDatabase().exactRef(dest.ref);
+            tips.put(dest, ref == null ? ObjectId.zeroId() : ref.getObjectId());
+          } catch (RepositoryNotFoundException e) {
+            throw new NoSuchProjectException(project);
+          }
+        });
+    return tips;
+  }
+
+  /**
+   * Returns the destinations whose branches moved away from the tip which they were merged onto. A
+   * branch which is already at the batch commit (from an earlier, partial, submit) is not stale.
+   */
+  public List<Batch.Destination> getStaleDestinations(
+      Batch batch, Map<Batch.Destination, ObjectId> tips) {
+    List<Batch.Destination> stale = new ArrayList<>();
+    for (Batch.Destination dest : batch.listDestinations()) {
+      String tip = tips.get(dest).name();
+      if (dest.baseSha1 != null && !tip.equals(dest.baseSha1) && !tip.equals(dest.sha1)) {
+        log.atWarning().log(
+            "Batch %s is stale: %s:%s moved from %s to %s",
+            batch.id, dest.project, dest.ref, dest.baseSha1, tip);
+        stale.add(dest);
+      }
+    }
+    return stale;
   }
 
   private void ensureCanSubmit(Batch batch) throws AuthException, PermissionBackendException {
@@ -116,60 +256,223 @@ public class BatchSubmitter {
     permissions.ref(dest.ref).check(RefPermission.FORCE_UPDATE);
   }
 
-  private void submit(Batch batch)
-      throws IOException, NoSuchProjectException, RepositoryNotFoundException, RestApiException,
-          UpdateException, PermissionBackendException {
+  /**
+   * Run the step for each destination, in batch order. With an executor, the destinations of
+   * different projects are run concurrently, and those of the same project in order on one worker.
+   */
+  private void forEachDestination(Batch batch, ExecutorService executor, DestinationStep step)
+      throws IOException, NoSuchProjectException, RestApiException, UpdateException,
+          PermissionBackendException {
+    if (executor == null) {
+      try {
+        for (Batch.Destination dest : batch.listDestinations()) {
+          step.run(dest);
+        }
+      } catch (Exception e) {
+        rethrow(e);
+      }
+      return;
+    }
+    // Destinations in the same project stay in batch order on a single worker
+    Map<String, List<Batch.Destination>> destsByProject = new LinkedHashMap<>();
     for (Batch.Destination dest : batch.listDestinations()) {
-      updateRef(dest);
-      closeChanges(dest);
+      destsByProject.computeIfAbsent(dest.project, p -> new ArrayList<>()).add(dest);
+    }
+    List<Future<Void>> futures = new ArrayList<>();
+    for (List<Batch.Destination> dests : destsByProject.values()) {
+      futures.add(
+          executor.submit(
+              requestScopePropagator.wrap(
+                  () -> {
+                    for (Batch.Destination dest : dests) {
+                      step.run(dest);
+                    }
+                    return null;
+                  })));
     }
+    // Wait for every project before failing so that no worker outlives the submit
+    Throwable failure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("submitting batch " + batch.id);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        } else {
+          failure.addSuppressed(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      rethrow(failure);
+    }
+  }
+
+  private static void rethrow(Throwable failure)
+      throws IOException, NoSuchProjectException, RestApiException, UpdateException,
+          PermissionBackendException {
+    Throwables.throwIfInstanceOf(failure, IOException.class);
+    Throwables.throwIfInstanceOf(failure, NoSuchProjectException.class);
+    Throwables.throwIfInstanceOf(failure, RestApiException.class);
+    Throwables.throwIfInstanceOf(failure, UpdateException.class);
+    Throwables.throwIfInstanceOf(failure, PermissionBackendException.class);
+    Throwables.throwIfUnchecked(failure);
+    throw new IOException(failure);
   }
 
-  private void updateRef(Batch.Destination dest)
+  /** Force update the branch, unless it moved away from the tip it had when it was checked. */
+  private void updateRef(Batch.Destination dest, ObjectId tip)
       throws IOException, NoSuchProjectException, RepositoryNotFoundException {
+    Stopwatch sw = Stopwatch.createStarted();
     Project.NameKey project = Project.nameKey(dest.project);
     BranchNameKey branch = BranchNameKey.create(project, dest.ref);
-    refUpdater.forceUpdate(branch, ObjectId.fromString(dest.sha1));
+    refUpdater.forceUpdate(branch, tip, ObjectId.fromString(dest.sha1), null);
+    log.atInfo().log(
+        "Updated %s:%s in %d ms", dest.project, dest.ref, sw.elapsed(TimeUnit.MILLISECONDS));
   }
 
   private void closeChanges(Batch.Destination dest)
       throws IOException, RepositoryNotFoundException, RestApiException, UpdateException,
           PermissionBackendException {
+    Stopwatch sw = Stopwatch.createStarted();
+    closeDestinationChanges(dest);
+    log.atInfo().log(
+        "Closed changes on %s:%s in %d ms",
+        dest.project, dest.ref, sw.elapsed(TimeUnit.MILLISECONDS));
+  }
+
+  private void closeDestinationChanges(Batch.Destination dest)
+      throws IOException, RepositoryNotFoundException, RestApiException, UpdateException,
+          PermissionBackendException {
     if (dest.changes != null) {
       Project.NameKey project = Project.nameKey(dest.project);
+      PermissionBackend.ForProject permissions = permissionBackend.user(user).project(project);
+      Map<Change.Id, ChangeNotes> notesById = loadNotes(project, permissions, dest.changes);
       // TODO: Is using the first change in the batch for each dest the correct thing to do?
-      Change firstInDest =
-          notesFactory
-              .createChecked(project, dest.changes.get(0).toPatchSetId().changeId())
-              .getChange();
+      Change firstInDest = notesById.get(dest.changes.get(0).toPatchSetId().changeId()).getChange();
       SubmissionId submissionId = new SubmissionId(firstInDest);
+      Map<PatchSet.Id, Change> toClose = new LinkedHashMap<>();
+      Map<PatchSet.Id, ObjectId> picks = new HashMap<>();
       for (Batch.Change change : dest.changes) {
-        closeChange(project, change.toPatchSetId(), dest.sha1, submissionId);
+        PatchSet.Id psId = change.toPatchSetId();
+        Change open = getChangeToClose(notesById.get(psId.changeId()), psId);
+        if (open != null) {
+          toClose.put(psId, open);
+          if (change.pickedSha1 != null) {
+            picks.put(psId, ObjectId.fromString(change.pickedSha1));
+          }
+        }
+      }
+      if (toClose.isEmpty()) {
+        return;
+      }
+      try {
+        closeChanges(project, toClose, picks, dest.sha1, submissionId);
+      } catch (UpdateException | RestApiException e) {
+        log.atWarning().withCause(e).log(
+            "Closing %d changes on %s:%s failed, retrying one change at a time",
+            toClose.size(), dest.project, dest.ref);
+        closeEachChange(project, toClose, picks, dest.sha1, submissionId);
       }
     }
   }
 
-  private void closeChange(
-      Project.NameKey project, PatchSet.Id psId, String sha1, SubmissionId submissionId)
+  /** Close the changes one by one so that failures can be attributed to a single change. */
+  private void closeEachChange(
+      Project.NameKey project,
+      Map<PatchSet.Id, Change> toClose,
+      Map<PatchSet.Id, ObjectId> picks,
+      String sha1,
+      SubmissionId submissionId)
       throws IOException, RepositoryNotFoundException, RestApiException, UpdateException,
           PermissionBackendException {
+    Exception failure = null;
+    for (Map.Entry<PatchSet.Id, Change> e : toClose.entrySet()) {
+      PatchSet.Id psId = e.getKey();
+      try {
+        // The failed update may still have closed some of the changes
+        Change open = getChangeToClose(project, psId);
+        if (open != null) {
+          closeChanges(project, ImmutableMap.of(psId, open), picks, sha1, submissionId);
+        }
+      } catch (UpdateException | RestApiException err) {
+        log.atSevere().withCause(err).log("Failed to close %s", psId);
+        if (failure == null) {
+          failure = err;
+        } else {
+          failure.addSuppressed(err);
+        }
+      }
+    }
+    if (failure != null) {
+      Throwables.throwIfInstanceOf(failure, UpdateException.class);
+      throw (RestApiException) failure;
+    }
+  }
+
+  /**
+   * Load the notes of all the changes, and check that the user can read each of them using the same
+   * project permissions. The status and patch sets come from the notes rather than the change
+   * index, which may lag behind them. Fails if a change does not exist.
+   */
+  private Map<Change.Id, ChangeNotes> loadNotes(
+      Project.NameKey project,
+      PermissionBackend.ForProject permissions,
+      Collection<Batch.Change> changes)
+      throws RestApiException, PermissionBackendException {
+    Map<Change.Id, ChangeNotes> notesById = new LinkedHashMap<>();
+    for (Batch.Change change : changes) {
+      Change.Id id = change.toPatchSetId().changeId();
+      if (!notesById.containsKey(id)) {
+        ChangeNotes notes = notesFactory.createChecked(project, id);
+        permissions.change(notes).check(ChangePermission.READ);
+        notesById.put(id, notes);
+      }
+    }
+    return notesById;
+  }
+
+  private Change getChangeToClose(Project.NameKey project, PatchSet.Id psId)
+      throws RestApiException, PermissionBackendException {
     ChangeNotes changeNotes = notesFactory.createChecked(project, psId.changeId());
     permissionBackend.user(user).change(changeNotes).check(ChangePermission.READ);
+    return getChangeToClose(changeNotes, psId);
+  }
+
+  /** Returns the change if psId should be closed, or null if it is missing or already closed. */
+  private Change getChangeToClose(ChangeNotes changeNotes, PatchSet.Id psId) {
     Change change = changeNotes.getChange();
-    PatchSet ps = psUtil.get(changeNotes, psId);
+    PatchSet ps = change == null ? null : changeNotes.getPatchSets().get(psId);
     if (change == null || ps == null) {
       log.atSevere().log("%s is missing", psId);
-      return;
+      return null;
     }
 
     if (change.getStatus() == Change.Status.MERGED
         || change.getStatus() == Change.Status.ABANDONED) {
-      return;
+      return null;
     }
+    return change;
+  }
 
+  /**
+   * Close all of the changes with a single BatchUpdate. Like Gerrit's cherry-pick submit, a change
+   * which was cherry-picked gets a new patch set for the picked commit, which is closed instead of
+   * the patch set in the batch, so that the merged patch set is reachable from the branch.
+   */
+  private void closeChanges(
+      Project.NameKey project,
+      Map<PatchSet.Id, Change> toClose,
+      Map<PatchSet.Id, ObjectId> picks,
+      String sha1,
+      SubmissionId submissionId)
+      throws IOException, RepositoryNotFoundException, RestApiException, UpdateException {
     try (TraceContext traceContext =
             TraceContext.open()
-                .addTag(RequestId.Type.SUBMISSION_ID, new RequestId(change.getId().toString()));
+                .addTag(RequestId.Type.SUBMISSION_ID, new RequestId(submissionId.toString()));
         Repository repo = repoManager.openRepository(project);
         BatchUpdate bu = batchUpdateFactory.create(project, user, TimeUtil.nowTs());
         ObjectInserter ins = repo.newObjectInserter();
@@ -177,11 +480,63 @@ public class BatchSubmitter {
         RevWalk walk = new RevWalk(reader)) {
       bu.setRepository(repo, walk, ins);
       bu.setRefLogMessage("merged (batch submit)");
-      bu.addOp(
-          psId.changeId(),
-          mergedByPushOpFactory.create(
-              requestScopePropagator, psId, submissionId, change.getDest().branch(), sha1));
+      for (Map.Entry<PatchSet.Id, Change> e : toClose.entrySet()) {
+        PatchSet.Id psId = e.getKey();
+        String branch = e.getValue().getDest().branch();
+        ObjectId picked = picks.get(psId);
+        if (picked == null) {
+          bu.addOp(
+              psId.changeId(),
+              mergedByPushOpFactory.create(
+                  requestScopePropagator, psId, submissionId, branch, sha1));
+          continue;
+        }
+        ChangeNotes notes = notesFactory.createChecked(project, psId.changeId());
+        PatchSet.Id existing = findPatchSet(notes, picked);
+        if (existing != null) {
+          // An earlier, partially failed, submit already added the patch set for the picked commit
+          bu.addOp(
+              psId.changeId(),
+              mergedByPushOpFactory.create(
+                  requestScopePropagator, existing, submissionId, branch, picked.name()));
+          continue;
+        }
+        PatchSet.Id pickedPsId =
+            ChangeUtil.nextPatchSetId(repo, notes.getChange().currentPatchSetId());
+        PatchSetInserter inserter =
+            patchSetInserterFactory
+                .create(notes, pickedPsId, picked)
+                .setMessage(
+                    "Patch Set "
+                        + pickedPsId.get()
+                        + ": Patch Set "
+                        + psId.get()
+                        + " was cherry-picked to "
+                        + branch
+                        + " as "
+                        + picked.name()
+                        + " by batch submit.")
+                .setCheckAddPatchSetPermission(false)
+                .setValidate(false)
+                .setSendEmail(false);
+        bu.addOp(psId.changeId(), inserter);
+        bu.addOp(
+            psId.changeId(),
+            mergedByPushOpFactory
+                .create(requestScopePropagator, pickedPsId, submissionId, branch, picked.name())
+                .setPatchSetProvider(inserter::getPatchSet));
+      }
       bu.execute();
     }
   }
+
+  /** Returns the id of the patch set of the change for the commit, or null if there is none. */
+  private static PatchSet.Id findPatchSet(ChangeNotes notes, ObjectId commit) {
+    for (PatchSet ps : notes.getPatchSets().values()) {
+      if (ps.commitId().equals(commit)) {
+        return ps.id();
+      }
+    }
+    return null;
+  }
 }
@@ -0,0 +1,248 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.batch;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.PatchSet;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Compact binary encoding of a batch.
+ *
+ * <p>The encoding starts with a magic number and a format version, followed by the batch fields in
+ * declaration order. Integers are unsigned varints, nullable integers and counts are stored
+ * incremented by one so that 0 can stand for null, strings are a nullable length followed by UTF-8
+ * bytes and sha1s are stored as 20 raw bytes behind a presence byte.
+ *
+ * <p>Version 2 added the base sha1, the merge strategy and the fast forward mode of each
+ * destination and the picked sha1 of each change, version 1 batches are still decoded.
+ */
+public class BinaryBatchCodec {
+  protected static final int MAGIC = 0xBA7C;
+  protected static final int VERSION = 2;
+
+  public static byte[] encode(Batch batch) {
+    Writer w = new Writer();
+    w.varint(MAGIC);
+    w.varint(VERSION);
+    w.string(batch.id);
+    w.nullableInt(batch.version);
+    w.nullableInt(batch.owner == null ? null : batch.owner.get());
+    w.nullableInt(batch.state == null ? null : batch.state.ordinal());
+    w.nullableLong(batch.lastModified == null ? null : batch.lastModified.getTime());
+    w.nullableInt(batch.destinations == null ? null : batch.destinations.size());
+    for (Batch.Destination dest : batch.listDestinations()) {
+      w.string(dest.project);
+      w.string(dest.ref);
+      w.sha1(dest.sha1);
+      w.sha1(dest.baseSha1);
+      w.string(dest.strategy);
+      w.string(dest.fastForward);
+      w.string(dest.downloadRef);
+      w.nullableInt(dest.changes == null ? null : dest.changes.size());
+      if (dest.changes != null) {
+        for (Batch.Change change : dest.changes) {
+          w.varint(change.number);
+          w.varint(change.patchSet);
+          w.sha1(change.pickedSha1);
+        }
+      }
+    }
+    return w.toByteArray();
+  }
+
+  public static Batch decode(byte[] raw) throws IOException {
+    Reader r = new Reader(raw);
+    if (r.varint() != MAGIC) {
+      throw new IOException("Not a binary batch");
+    }
+    int version = (int) r.varint();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported binary batch version: " + version);
+    }
+    Batch batch = new Batch(r.string());
+    batch.version = r.nullableInt();
+    Integer owner = r.nullableInt();
+    batch.owner = owner == null ? null : Account.id(owner);
+    Integer state = r.nullableInt();
+    if (state != null && (state < 0 || state >= Batch.State.values().length)) {
+      throw new IOException("Invalid batch state in binary batch: " + state);
+    }
+    batch.state = state == null ? null : Batch.State.values()[state];
+    Long lastModified = r.nullableLong();
+    batch.lastModified = lastModified == null ? null : new Date(lastModified);
+    Integer destinations = r.count();
+    if (destinations != null) {
+      batch.destinations = new ArrayList<>(destinations);
+      for (int d = 0; d < destinations; d++) {
+        Batch.Destination dest = batch.new Destination();
+        dest.project = r.string();
+        dest.ref = r.string();
+        dest.sha1 = r.sha1();
+        if (version >= 2) {
+          dest.baseSha1 = r.sha1();
+          dest.strategy = r.string();
+          dest.fastForward = r.string();
+        }
+        dest.downloadRef = r.string();
+        Integer changes = r.count();
+        if (changes != null) {
+          List<Batch.Change> list = new ArrayList<>(changes);
+          for (int c = 0; c < changes; c++) {
+            int number = (int) r.varint();
+            int patchSet = (int) r.varint();
+            Batch.Change change =
+                new Batch.Change(
+                    PatchSet.id(com.google.gerrit.entities.Change.id(number), patchSet));
+            if (version >= 2) {
+              change.pickedSha1 = r.sha1();
+            }
+            list.add(change);
+          }
+          dest.changes = list;
+        }
+        batch.destinations.add(dest);
+      }
+    }
+    return batch;
+  }
+
+  protected static class Writer extends ByteArrayOutputStream {
+    protected void varint(long v) {
+      while ((v & ~0x7FL) != 0) {
+        write((int) ((v & 0x7F) | 0x80));
+        v >>>= 7;
+      }
+      write((int) v);
+    }
+
+    protected void nullableInt(Integer v) {
+      varint(v == null ? 0 : v.longValue() + 1);
+    }
+
+    protected void nullableLong(Long v) {
+      varint(v == null ? 0 : v + 1);
+    }
+
+    protected void string(String s) {
+      if (s == null) {
+        varint(0);
+        return;
+      }
+      byte[] b = s.getBytes(UTF_8);
+      varint(b.length + 1);
+      write(b, 0, b.length);
+    }
+
+    protected void sha1(String sha1) {
+      if (sha1 == null) {
+        write(0);
+        return;
+      }
+      write(1);
+      byte[] b = new byte[Constants.OBJECT_ID_LENGTH];
+      ObjectId.fromString(sha1).copyRawTo(b, 0);
+      write(b, 0, b.length);
+    }
+  }
+
+  protected static class Reader {
+    protected final byte[] raw;
+    protected int pos;
+
+    protected Reader(byte[] raw) {
+      this.raw = raw;
+    }
+
+    protected int next() throws IOException {
+      if (pos >= raw.length) {
+        throw new IOException("Truncated binary batch");
+      }
+      return raw[pos++] & 0xFF;
+    }
+
+    protected long varint() throws IOException {
+      long v = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = next();
+        v |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return v;
+        }
+      }
+      throw new IOException("Malformed varint in binary batch");
+    }
+
+    protected Integer nullableInt() throws IOException {
+      long v = varint();
+      return v == 0 ? null : (int) (v - 1);
+    }
+
+    /**
+     * Reads a nullable count of entries. Each entry takes at least one byte, so a count larger than
+     * the bytes left can only come from a corrupt batch, and is rejected before it is used to size
+     * a list.
+     */
+    protected Integer count() throws IOException {
+      long v = varint();
+      if (v == 0) {
+        return null;
+      }
+      if (v < 0 || v - 1 > raw.length - pos) {
+        throw new IOException("Invalid count in binary batch: " + (v - 1));
+      }
+      return (int) (v - 1);
+    }
+
+    protected Long nullableLong() throws IOException {
+      long v = varint();
+      return v == 0 ? null : v - 1;
+    }
+
+    protected String string() throws IOException {
+      long v = varint();
+      if (v == 0) {
+        return null;
+      }
+      if (v < 0 || v - 1 > raw.length - pos) {
+        throw new IOException("Truncated binary batch");
+      }
+      int len = (int) (v - 1);
+      String s = new String(raw, pos, len, UTF_8);
+      pos += len;
+      return s;
+    }
+
+    protected String sha1() throws IOException {
+      if (next() == 0) {
+        return null;
+      }
+      if (pos + Constants.OBJECT_ID_LENGTH > raw.length) {
+        throw new IOException("Truncated binary batch");
+      }
+      String sha1 = ObjectId.fromRaw(raw, pos).name();
+      pos += Constants.OBJECT_ID_LENGTH;
+      return sha1;
+    }
+  }
+}
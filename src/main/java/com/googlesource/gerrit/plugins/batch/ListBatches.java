@@ -18,10 +18,13 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.base.Joiner;
 import com.google.gerrit.common.data.GlobalCapability;
 import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.index.query.LimitPredicate;
+import com.google.gerrit.index.query.Matchable;
 import com.google.gerrit.index.query.Predicate;
 import com.google.gerrit.index.query.QueryParseException;
 import com.google.gerrit.json.OutputFormat;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.batch.query.BatchQueryBuilder;
 import java.io.BufferedWriter;
@@ -48,6 +51,12 @@ public class ListBatches {
   @Option(name = "--include-batch-info", usage = "include additional information for every batch")
   protected boolean includeBatchInfo;
 
+  @Option(
+      name = "--ids-only",
+      forbids = "--include-batch-info",
+      usage = "only display the batch ids, also when a query is given")
+  protected boolean idsOnly;
+
   protected final BatchQueryBuilder queryBuilder;
   protected final BatchStore store;
 
@@ -62,9 +71,17 @@ public class ListBatches {
       PrintWriter stdout =
           new PrintWriter(new BufferedWriter(new OutputStreamWriter(displayOutputStream, UTF_8)));
       try {
-        OutputFormat.JSON
-            .newGson()
-            .toJson(getBatches(), new TypeToken<List<Batch>>() {}.getType(), stdout);
+        Gson gson = OutputFormat.JSON.newGson();
+        JsonWriter writer = gson.newJsonWriter(stdout);
+        writer.beginArray();
+        visitBatches(
+            batch -> {
+              gson.toJson(batch, Batch.class, writer);
+              writer.flush(); // Let the client see each batch as soon as it matches
+              return true;
+            });
+        writer.endArray();
+        writer.flush();
         stdout.print('\n');
       } finally {
         stdout.flush();
@@ -75,17 +92,43 @@ public class ListBatches {
   }
 
   public List<Batch> getBatches() throws IOException, QueryParseException {
+    List<Batch> batches = new ArrayList<>();
+    visitBatches(batch -> batches.add(batch));
+    return batches;
+  }
+
+  /**
+   * Visit the matching batches while the batch refs are being iterated.
+   *
+   * <p>Batches are visited whole when batch info was requested or a query is given (unless only ids
+   * were requested), and are otherwise only loaded in as much detail as the query needs and reduced
+   * to their ids.
+   */
+  public void visitBatches(BatchStore.Visitor visitor) throws IOException, QueryParseException {
     Predicate<Batch> pred = null;
+    boolean full = includeBatchInfo || (query != null && !query.isEmpty() && !idsOnly);
+    BatchStore.Detail detail = full ? BatchStore.Detail.FULL : BatchStore.Detail.ID;
+    Integer limit = null;
     if (query != null) {
       pred = queryBuilder.parse(Joiner.on(" ").join(query));
-      includeBatchInfo = true;
+      detail = BatchQueryBuilder.max(detail, BatchQueryBuilder.getDetail(pred));
+      limit = LimitPredicate.getLimit("limit", pred);
     }
-    List<Batch> batches = new ArrayList<>();
-    for (Batch batch : store.find(includeBatchInfo)) {
-      if (pred == null || pred.asMatchable().match(batch)) {
-        batches.add(batch);
-      }
+    Matchable<Batch> matchable = pred == null ? null : pred.asMatchable();
+    int max = limit == null ? Integer.MAX_VALUE : limit;
+    int[] matched = new int[1];
+    BatchStore.Visitor matching =
+        batch -> {
+          if (matchable == null || matchable.match(batch)) {
+            matched[0]++;
+            return visitor.visit(full ? batch : new Batch(batch.id)) && matched[0] < max;
+          }
+          return true;
+        };
+    if (pred != null && BatchQueryBuilder.isIndexed(pred)) {
+      store.findIndexed(BatchQueryBuilder.getIndexedIds(pred), matching);
+    } else {
+      store.find(detail, matching);
     }
-    return batches;
   }
 }
@@ -19,6 +19,8 @@ import com.google.gerrit.server.git.meta.GitFile;
 import com.google.inject.internal.UniqueAnnotations;
 import com.googlesource.gerrit.plugins.batch.util.MergeBranch;
 import com.googlesource.gerrit.plugins.batch.util.MergeBuilder;
+import com.googlesource.gerrit.plugins.batch.util.MergeCache;
+import com.googlesource.gerrit.plugins.batch.util.MergePipeline;
 
 public class Module extends FactoryModule {
   @Override
@@ -26,9 +28,23 @@ public class Module extends FactoryModule {
     factory(GitFile.Factory.class);
     factory(MergeBranch.Factory.class);
     factory(MergeBuilder.Factory.class);
+    factory(MergePipeline.Factory.class);
+    install(MergeCache.module());
 
     bind(LifecycleListener.class)
         .annotatedWith(UniqueAnnotations.create())
         .to(BatchCleaner.Lifecycle.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(BatchIndex.Lifecycle.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(BatchLoader.Lifecycle.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(BatchSubmitExecutor.Lifecycle.class);
+    bind(LifecycleListener.class)
+        .annotatedWith(UniqueAnnotations.create())
+        .to(BatchMergeExecutor.Lifecycle.class);
   }
 }
@@ -14,6 +14,7 @@
 package com.googlesource.gerrit.plugins.batch.cli;
 
 import com.google.gerrit.sshd.BaseCommand.UnloggedFailure;
+import com.googlesource.gerrit.plugins.batch.util.CherryPickStrategy;
 import org.eclipse.jgit.merge.MergeStrategy;
 import org.kohsuke.args4j.Option;
 
@@ -21,21 +22,31 @@ public class MergeStrategyOption {
   @Option(
       name = "--strategy",
       metaVar = "STRATEGY",
-      usage = "jgit merge strategy(ours|theirs|simple[-two-way-in-core]|resolve) to use")
+      usage =
+          "jgit merge strategy(ours|theirs|simple[-two-way-in-core]|resolve) to use, or"
+              + " cherry-pick for a linear history")
   protected String strategy;
 
   protected MergeStrategy mergeStrategy;
 
   public MergeStrategy getMergeStrategy() throws UnloggedFailure {
     if (mergeStrategy == null && strategy != null) {
-      if ("simple".equals(strategy)) {
-        strategy = "simple-two-way-in-core";
-      }
-      mergeStrategy = MergeStrategy.get(strategy);
+      mergeStrategy = forName(strategy);
       if (mergeStrategy == null) {
         throw new UnloggedFailure(1, "unknown strategy " + strategy);
       }
     }
     return mergeStrategy;
   }
+
+  /** Returns the strategy with the given name (including cherry-pick), or null if there is none. */
+  public static MergeStrategy forName(String name) {
+    if ("simple".equals(name)) {
+      name = "simple-two-way-in-core";
+    }
+    if (CherryPickStrategy.NAME.equals(name)) {
+      return CherryPickStrategy.INSTANCE;
+    }
+    return MergeStrategy.get(name);
+  }
 }
@@ -14,19 +14,36 @@
 
 package com.googlesource.gerrit.plugins.batch.query;
 
+import com.google.common.collect.Sets;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.index.query.AndPredicate;
+import com.google.gerrit.index.query.LimitPredicate;
 import com.google.gerrit.index.query.Matchable;
 import com.google.gerrit.index.query.OperatorPredicate;
 import com.google.gerrit.index.query.Predicate;
 import com.google.gerrit.index.query.QueryBuilder;
 import com.google.gerrit.index.query.QueryParseException;
+import com.google.gerrit.json.JavaSqlTimestampHelper;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.batch.Batch;
 import com.googlesource.gerrit.plugins.batch.BatchStore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.Config;
 
@@ -47,6 +64,91 @@ public class BatchQueryBuilder extends QueryBuilder<Batch, BatchQueryBuilder> {
     public int getCost() {
       return 1;
     }
+
+    /** Returns how much of a batch must be loaded to match it. */
+    public BatchStore.Detail getDetail() {
+      return BatchStore.Detail.FULL;
+    }
+  }
+
+  /** Returns how much of a batch must be loaded to match it against pred. */
+  public static BatchStore.Detail getDetail(Predicate<Batch> pred) {
+    if (pred instanceof SimplePredicate) {
+      return ((SimplePredicate) pred).getDetail();
+    }
+    if (pred instanceof LimitPredicate) {
+      return BatchStore.Detail.ID;
+    }
+    if (pred.getChildCount() == 0) {
+      return BatchStore.Detail.FULL;
+    }
+    BatchStore.Detail detail = BatchStore.Detail.ID;
+    for (Predicate<Batch> child : pred.getChildren()) {
+      detail = max(detail, getDetail(child));
+    }
+    return detail;
+  }
+
+  /** Returns true if the batches matching pred are restricted by an indexed predicate. */
+  public static boolean isIndexed(Predicate<Batch> pred) {
+    if (pred instanceof IndexedPredicate) {
+      return true;
+    }
+    if (pred instanceof AndPredicate) {
+      for (Predicate<Batch> child : pred.getChildren()) {
+        if (isIndexed(child)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the ids of the batches which may match pred according to the batch index, or null if
+   * pred is not restricted by an indexed predicate.
+   */
+  public static Set<String> getIndexedIds(Predicate<Batch> pred) throws IOException {
+    if (pred instanceof IndexedPredicate) {
+      return ((IndexedPredicate) pred).getIds();
+    }
+    Set<String> ids = null;
+    if (pred instanceof AndPredicate) {
+      for (Predicate<Batch> child : pred.getChildren()) {
+        Set<String> childIds = getIndexedIds(child);
+        if (childIds != null) {
+          ids = ids == null ? childIds : Sets.intersection(ids, childIds);
+        }
+      }
+    }
+    return ids;
+  }
+
+  /** Reorder boolean combinations so that their cheapest children get matched first. */
+  protected static Predicate<Batch> sortByCost(Predicate<Batch> pred) {
+    if (pred.getChildCount() == 0) {
+      return pred;
+    }
+    List<Predicate<Batch>> children = new ArrayList<>();
+    for (Predicate<Batch> child : pred.getChildren()) {
+      children.add(sortByCost(child));
+    }
+    children.sort(Comparator.comparingInt(Predicate::estimateCost));
+    return pred.copy(children);
+  }
+
+  public static BatchStore.Detail max(BatchStore.Detail a, BatchStore.Detail b) {
+    return a.compareTo(b) >= 0 ? a : b;
+  }
+
+  /** A predicate which can list the ids of the batches it matches from the batch index. */
+  public abstract static class IndexedPredicate extends SimplePredicate {
+    public IndexedPredicate(String op, String val) {
+      super(op, val);
+    }
+
+    /** Returns the ids of the matching batches from the batch index. */
+    public abstract Set<String> getIds() throws IOException;
   }
 
   protected static final QueryBuilder.Definition<Batch, BatchQueryBuilder> mydef =
@@ -56,6 +158,7 @@ public class BatchQueryBuilder extends QueryBuilder<Batch, BatchQueryBuilder> {
 
   protected final ProjectCache projectCache;
   protected final PluginConfigFactory cfgFactory;
+  protected final AccountCache accountCache;
   protected final BatchStore store;
   protected final String pluginName;
 
@@ -63,15 +166,22 @@ public class BatchQueryBuilder extends QueryBuilder<Batch, BatchQueryBuilder> {
   public BatchQueryBuilder(
       ProjectCache projectCache,
       PluginConfigFactory cfgFactory,
+      AccountCache accountCache,
       BatchStore store,
       @PluginName String pluginName) {
     super(mydef, null);
     this.projectCache = projectCache;
     this.cfgFactory = cfgFactory;
+    this.accountCache = accountCache;
     this.store = store;
     this.pluginName = pluginName;
   }
 
+  @Override
+  public Predicate<Batch> parse(String query) throws QueryParseException {
+    return sortByCost(super.parse(query));
+  }
+
   public Date getExpiry() {
     Config config = cfgFactory.getProjectPluginConfig(projectCache.getAllProjects(), pluginName);
     long seconds =
@@ -91,8 +201,248 @@ public class BatchQueryBuilder extends QueryBuilder<Batch, BatchQueryBuilder> {
         public boolean match(Batch b) {
           return b.lastModified.before(expiry);
         }
+
+        @Override
+        public BatchStore.Detail getDetail() {
+          return BatchStore.Detail.REF; // Every save commits to the batch ref
+        }
       };
     }
     throw error("Invalid query");
   }
+
+  @Operator
+  public Predicate<Batch> state(String value) throws QueryParseException {
+    Batch.State state;
+    try {
+      state = Batch.State.valueOf(value.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      throw error("Invalid state: " + value);
+    }
+    return new SimplePredicate("state", value) {
+      @Override
+      public boolean match(Batch b) {
+        return b.state == state;
+      }
+
+      @Override
+      public int getCost() {
+        return 2;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> owner(String value) throws QueryParseException {
+    Account.Id owner = parseAccount(value);
+    return new SimplePredicate("owner", value) {
+      @Override
+      public boolean match(Batch b) {
+        return owner.equals(b.owner);
+      }
+
+      @Override
+      public int getCost() {
+        return 2;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> project(String value) {
+    return new SimplePredicate("project", value) {
+      @Override
+      public boolean match(Batch b) {
+        for (Batch.Destination dest : b.listDestinations()) {
+          if (value.equals(dest.project)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public int getCost() {
+        return 3;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> ref(String value) {
+    String ref = RefNames.fullName(value);
+    return new SimplePredicate("ref", value) {
+      @Override
+      public boolean match(Batch b) {
+        for (Batch.Destination dest : b.listDestinations()) {
+          if (ref.equals(dest.ref)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public int getCost() {
+        return 3;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> branch(String value) {
+    return ref(value);
+  }
+
+  @Operator
+  public Predicate<Batch> destination(String value) throws QueryParseException {
+    int refs = value.indexOf("/refs/");
+    if (refs <= 0) {
+      throw error("Invalid destination, expected PROJECT/REF: " + value);
+    }
+    BranchNameKey branch =
+        BranchNameKey.create(value.substring(0, refs), value.substring(refs + 1));
+    return new IndexedPredicate("destination", value) {
+      @Override
+      public Set<String> getIds() throws IOException {
+        return store.findIds(branch);
+      }
+
+      @Override
+      public boolean match(Batch b) {
+        for (Batch.Destination dest : b.listDestinations()) {
+          if (branch.project().get().equals(dest.project) && branch.branch().equals(dest.ref)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public int getCost() {
+        return 3;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> change(String value) throws QueryParseException {
+    Optional<Change.Id> id = Change.Id.tryParse(value);
+    if (!id.isPresent()) {
+      throw error("Invalid change number: " + value);
+    }
+    int number = id.get().get();
+    return new IndexedPredicate("change", value) {
+      @Override
+      public Set<String> getIds() throws IOException {
+        return store.findIds(id.get());
+      }
+
+      @Override
+      public boolean match(Batch b) {
+        for (Batch.Destination dest : b.listDestinations()) {
+          if (dest.changes != null) {
+            for (Batch.Change change : dest.changes) {
+              if (change.toPatchSetId().changeId().get() == number) {
+                return true;
+              }
+            }
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public int getCost() {
+        return 4;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> before(String value) throws QueryParseException {
+    Date before = parseTimestamp(value);
+    return new SimplePredicate("before", value) {
+      @Override
+      public boolean match(Batch b) {
+        return b.lastModified.before(before);
+      }
+
+      @Override
+      public BatchStore.Detail getDetail() {
+        return BatchStore.Detail.REF;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> after(String value) throws QueryParseException {
+    Date after = parseTimestamp(value);
+    return new SimplePredicate("after", value) {
+      @Override
+      public boolean match(Batch b) {
+        return b.lastModified.after(after);
+      }
+
+      @Override
+      public BatchStore.Detail getDetail() {
+        return BatchStore.Detail.REF;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> age(String value) throws QueryParseException {
+    long seconds;
+    try {
+      seconds = ConfigUtil.getTimeUnit(value, -1, TimeUnit.SECONDS);
+    } catch (IllegalArgumentException e) {
+      seconds = -1;
+    }
+    if (seconds < 0) {
+      throw error("Invalid age: " + value);
+    }
+    Date cutoff =
+        new Date(new Date().getTime() - TimeUnit.MILLISECONDS.convert(seconds, TimeUnit.SECONDS));
+    return new SimplePredicate("age", value) {
+      @Override
+      public boolean match(Batch b) {
+        return b.lastModified.before(cutoff);
+      }
+
+      @Override
+      public BatchStore.Detail getDetail() {
+        return BatchStore.Detail.REF;
+      }
+    };
+  }
+
+  @Operator
+  public Predicate<Batch> limit(String value) throws QueryParseException {
+    try {
+      return new LimitPredicate<>("limit", Integer.parseInt(value));
+    } catch (NumberFormatException e) {
+      throw error("Invalid limit: " + value);
+    }
+  }
+
+  protected Account.Id parseAccount(String value) throws QueryParseException {
+    Optional<Account.Id> id = Account.Id.tryParse(value);
+    if (id.isPresent()) {
+      return id.get();
+    }
+    Optional<AccountState> account = accountCache.getByUsername(value);
+    if (account.isPresent()) {
+      return account.get().account().id();
+    }
+    throw error("Account " + value + " not found");
+  }
+
+  protected Date parseTimestamp(String value) throws QueryParseException {
+    try {
+      return JavaSqlTimestampHelper.parseTimestamp(value);
+    } catch (IllegalArgumentException e) {
+      throw error("Invalid timestamp: " + value);
+    }
+  }
 }
@@ -17,33 +17,53 @@ import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.PatchSet;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MergeConflictException;
 import com.google.gerrit.json.OutputFormat;
-import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.gerrit.server.util.RequestScopePropagator;
 import com.google.gerrit.sshd.CommandMetaData;
 import com.google.gerrit.sshd.SshCommand;
 import com.google.gerrit.util.cli.Options;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.batch.Batch;
 import com.googlesource.gerrit.plugins.batch.BatchCloser;
+import com.googlesource.gerrit.plugins.batch.BatchMergeExecutor;
+import com.googlesource.gerrit.plugins.batch.BatchStore;
 import com.googlesource.gerrit.plugins.batch.cli.FastForwardOptions;
 import com.googlesource.gerrit.plugins.batch.cli.MergeStrategyOption;
 import com.googlesource.gerrit.plugins.batch.cli.PatchSetArgument;
-import com.googlesource.gerrit.plugins.batch.util.MergeBranch;
+import com.googlesource.gerrit.plugins.batch.exception.NoSuchBatchException;
+import com.googlesource.gerrit.plugins.batch.util.CherryPickStrategy;
+import com.googlesource.gerrit.plugins.batch.util.MergeBuilder;
+import com.googlesource.gerrit.plugins.batch.util.MergeBuilder.FastForwardMode;
+import com.googlesource.gerrit.plugins.batch.util.MergePipeline;
+import com.googlesource.gerrit.plugins.batch.util.RepositoryContext;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.Ref;
-import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -65,6 +85,25 @@ public class MergeChangeCommand extends SshCommand {
   @Option(name = "--close", usage = "close batch on merge success")
   public boolean close;
 
+  @Option(
+      name = "--batch",
+      metaVar = "BATCH-ID",
+      usage = "id of an open batch to merge the changes into")
+  public String batchId;
+
+  @Option(name = "--save", usage = "save the batch open so that more changes can be merged to it")
+  public boolean save;
+
+  @Option(
+      name = "--dry-run",
+      usage = "only check for merge conflicts, without writing any merges or the batch")
+  public boolean dryRun;
+
+  @Option(
+      name = "--exclude-conflicts",
+      usage = "leave out changes which conflict (and changes depending on them) instead of failing")
+  public boolean excludeConflicts;
+
   protected LinkedHashMap<PatchSet.Id, PatchSetArgument> patchSetArgumentsByPatchSet =
       new LinkedHashMap<>();
 
@@ -81,97 +120,329 @@ public class MergeChangeCommand extends SshCommand {
   }
 
   @Inject protected PatchSetArgument.Factory patchSetArgumentFactory;
-  @Inject protected MergeBranch.Factory mergeBranchFactory;
+  @Inject protected MergePipeline.Factory mergePipelineFactory;
   @Inject protected BatchCloser batchCloser;
-  @Inject protected GitRepositoryManager repoManager;
-  protected Map<PatchSet.Id, List<ObjectId>> parentsByPsarg = new HashMap<>();
+  @Inject protected BatchStore store;
+  @Inject protected RepositoryContext repos;
+  @Inject protected BatchMergeExecutor mergeExecutor;
+  @Inject protected RequestScopePropagator requestScopePropagator;
+  protected Map<BranchNameKey, MergePipeline> pipelinesByBranch = new LinkedHashMap<>();
+  protected Map<BranchNameKey, List<Conflict>> conflictsByBranch = new ConcurrentHashMap<>();
 
   @Override
   public void run() throws Exception {
-    Batch batch = new Batch(user.getAccountId());
-    String err = null;
+    if (dryRun && (close || save)) {
+      throw die("--dry-run cannot be combined with --close or --save");
+    }
+    if (dryRun && excludeConflicts) {
+      throw die("--dry-run cannot be combined with --exclude-conflicts");
+    }
+    Batch batch = batchId == null ? new Batch(user.getAccountId()) : readOpenBatch(batchId);
+    String err = "Couldn't resolve changes for batch(" + batch.id + ")";
     try {
-      Resolver resolver = new Resolver(patchSetArgumentsByPatchSet.values());
-      for (PatchSetArgument psarg : resolver.resolved) {
-        err = "Couldn't merge change(" + psarg.patchSet + ") to batch(" + batch.id + ")";
-        merge(batch, psarg.change, psarg.patchSet);
+      Resolver resolver = new Resolver(batch, getNewPatchSetArguments(batch));
+      err = "Couldn't merge changes to batch(" + batch.id + ")";
+      merge(batch, resolver.resolved);
+      if (excludeConflicts) {
+        // Drop new destinations which had all of their changes excluded
+        batch.listDestinations().removeIf(dest -> dest.sha1 == null);
       }
       if (close) {
         err = "Could not close batch(" + batch.id + ")";
         batchCloser.close(batch);
+      } else if (!dryRun && (save || batchId != null)) {
+        err = "Could not save batch(" + batch.id + ")";
+        store.save(batch);
       }
+    } catch (MergeFailure e) {
+      throw die(e.getMessage());
     } catch (Exception e) {
       String msg = e.getMessage();
       if (msg != null) {
         err += ": " + msg;
       }
       throw die(err);
+    } finally {
+      for (MergePipeline pipeline : pipelinesByBranch.values()) {
+        pipeline.close();
+      }
+      repos.close();
+    }
+    if (dryRun) {
+      reportConflicts(batch);
+      return;
     }
     batch.version = null;
-    out.write((OutputFormat.JSON.newGson().toJson(batch) + "\n").getBytes(ENC));
+    Object result = excludeConflicts ? new ExclusionResult(batch, getConflicts(batch)) : batch;
+    out.write((OutputFormat.JSON.newGson().toJson(result) + "\n").getBytes(ENC));
     out.flush();
   }
 
-  protected boolean isParentMergedInto(PatchSetArgument psarg, Iterable<ObjectId> sha1s)
-      throws IOException, RepositoryNotFoundException {
-    for (ObjectId sha1 : sha1s) {
-      if (isParentMergedInto(psarg, sha1)) {
-        return true;
+  /** Returns the conflicts by destination, in the order the destinations were resolved. */
+  protected List<Conflict> getConflicts(Batch batch) {
+    List<Conflict> conflicts = new ArrayList<>();
+    for (BranchNameKey branch : pipelinesByBranch.keySet()) {
+      List<Conflict> branchConflicts = conflictsByBranch.get(branch);
+      if (branchConflicts != null) {
+        conflicts.addAll(branchConflicts);
       }
     }
-    return false;
+    return conflicts;
+  }
+
+  protected void reportConflicts(Batch batch) throws IOException, UnloggedFailure {
+    List<Conflict> conflicts = getConflicts(batch);
+    out.write((OutputFormat.JSON.newGson().toJson(conflicts) + "\n").getBytes(ENC));
+    out.flush();
+    if (!conflicts.isEmpty()) {
+      throw die(conflicts.size() + " destination(s) of batch(" + batch.id + ") have conflicts");
+    }
   }
 
-  protected boolean isParentMergedInto(PatchSetArgument psarg, ObjectId sha1)
-      throws IOException, RepositoryNotFoundException {
-    List<ObjectId> parents = getParents(psarg);
-    if (parents.isEmpty()) {
-      return true;
+  protected Batch readOpenBatch(String id) throws IOException, UnloggedFailure {
+    Batch batch;
+    try {
+      batch = store.read(id);
+    } catch (NoSuchBatchException e) {
+      throw die(e.getMessage());
     }
-    for (ObjectId parent : parents) {
-      Project.NameKey project = psarg.change.getDest().project();
-      if (isMergedInto(project, parent, sha1)) {
-        return true;
+    if (batch.state != Batch.State.OPEN) {
+      throw die("Cannot merge to batch(" + id + ") in state " + batch.state);
+    }
+    if (!user.getAccountId().equals(batch.owner)) {
+      throw die("Cannot merge to batch(" + id + ") owned by another user");
+    }
+    return batch;
+  }
+
+  /** Returns the patch set arguments which are not in the batch yet. */
+  protected List<PatchSetArgument> getNewPatchSetArguments(Batch batch) throws UnloggedFailure {
+    Map<Change.Id, PatchSet.Id> inBatch = new HashMap<>();
+    for (Batch.Destination dest : batch.listDestinations()) {
+      if (dest.changes != null) {
+        for (Batch.Change change : dest.changes) {
+          PatchSet.Id psId = change.toPatchSetId();
+          inBatch.put(psId.changeId(), psId);
+        }
+      }
+    }
+    List<PatchSetArgument> psargs = new ArrayList<>();
+    for (PatchSetArgument psarg : patchSetArgumentsByPatchSet.values()) {
+      PatchSet.Id existing = inBatch.get(psarg.change.getId());
+      if (existing == null) {
+        psargs.add(psarg);
+      } else if (!existing.equals(psarg.patchSet.id())) {
+        throw die(
+            "Change(" + psarg.patchSet + ") is already in batch(" + batch.id + ") as " + existing);
       }
     }
-    return false;
+    return psargs;
   }
 
   public boolean isMergedInto(Project.NameKey project, ObjectId needle, ObjectId haystack)
       throws IOException {
-    try (Repository repo = repoManager.openRepository(project);
-        RevWalk walk = new RevWalk(repo)) {
-      return walk.isMergedInto(walk.parseCommit(needle), walk.parseCommit(haystack));
-    }
+    return repos.isMergedInto(project, needle, haystack);
   }
 
   protected ObjectId getTip(BranchNameKey branch)
       throws IOException, NoSuchRefException, RepositoryNotFoundException {
-    try (Repository repo = repoManager.openRepository(branch.project())) {
-      Ref ref = repo.getRefDatabase().exactRef(branch.branch());
-      if (ref == null) {
-        throw new NoSuchRefException(branch.toString());
+    return repos.getTip(branch);
+  }
+
+  /**
+   * Merge the resolved changes, destinations are independent of each other so they are merged
+   * concurrently on the merge pool, in their resolved order within each destination.
+   */
+  protected void merge(Batch batch, List<PatchSetArgument> resolved) throws Exception {
+    Map<BranchNameKey, List<PatchSetArgument>> psargsByBranch = new LinkedHashMap<>();
+    for (PatchSetArgument psarg : resolved) {
+      psargsByBranch.computeIfAbsent(psarg.change.getDest(), b -> new ArrayList<>()).add(psarg);
+    }
+    MergeStrategy mergeStrategy = strategy.getMergeStrategy();
+    FastForwardMode ffMode = fastForward.getFastForwardMode();
+    // Destinations and pipelines are shared state, only create them on this thread
+    for (BranchNameKey branch : psargsByBranch.keySet()) {
+      Batch.Destination dest = batch.getDestination(branch);
+      String strategyName = mergeStrategy == null ? null : mergeStrategy.getName();
+      String ffName = ffMode == null ? null : ffMode.getName();
+      if (dest.changes != null && !dest.changes.isEmpty()) {
+        // A rebuild merges all of the changes of a destination with one set of options
+        if (!Objects.equals(dest.strategy, strategyName)
+            || !Objects.equals(dest.fastForward, ffName)) {
+          throw die(
+              branch
+                  + " was merged with strategy "
+                  + (dest.strategy == null ? "(default)" : dest.strategy)
+                  + " and fast forward mode "
+                  + (dest.fastForward == null ? "(default)" : dest.fastForward)
+                  + ", use the same options to merge more changes to it");
+        }
+      }
+      // Recorded so that a rebuild merges the destination the same way
+      dest.strategy = strategyName;
+      dest.fastForward = ffName;
+      if (dest.sha1 == null && dest.baseSha1 == null) {
+        // Submit checks that the branch is still at the tip the destination was merged onto
+        dest.baseSha1 = getTip(branch).name();
+      }
+      getPipeline(branch, dest);
+    }
+    ExecutorService executor = psargsByBranch.size() > 1 ? mergeExecutor.getExecutor() : null;
+    if (executor == null) {
+      for (List<PatchSetArgument> psargs : psargsByBranch.values()) {
+        mergeAndFlush(batch, psargs);
+      }
+      return;
+    }
+    List<Future<Void>> futures = new ArrayList<>();
+    for (List<PatchSetArgument> psargs : psargsByBranch.values()) {
+      futures.add(
+          executor.submit(
+              requestScopePropagator.wrap(
+                  () -> {
+                    mergeAndFlush(batch, psargs);
+                    return null;
+                  })));
+    }
+    // Wait for every destination before failing so that no merge outlives the command
+    Exception failure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  protected void mergeAndFlush(Batch batch, List<PatchSetArgument> psargs) throws MergeFailure {
+    BranchNameKey branch = psargs.get(0).change.getDest();
+    MergePipeline pipeline = pipelinesByBranch.get(branch);
+    List<Conflict> conflicts = new ArrayList<>();
+    Map<ObjectId, PatchSet.Id> excluded = new LinkedHashMap<>();
+    for (PatchSetArgument psarg : psargs) {
+      String err = "Couldn't merge change(" + psarg.patchSet + ") to batch(" + batch.id + ")";
+      try {
+        PatchSet.Id dependency = getExcludedDependency(pipeline, excluded, psarg);
+        if (dependency != null) {
+          conflicts.add(new Conflict(psarg, "Depends on excluded change " + dependency));
+          excluded.put(psarg.patchSet.commitId(), psarg.patchSet.id());
+          continue;
+        }
+        merge(batch, psarg.change, psarg.patchSet);
+      } catch (MergeConflictException e) {
+        conflicts.add(new Conflict(psarg, e));
+        if (excludeConflicts) {
+          // The pipeline is still at the last clean merge, carry on from there
+          excluded.put(psarg.patchSet.commitId(), psarg.patchSet.id());
+          continue;
+        }
+        if (!dryRun) {
+          throw new MergeFailure(err, e);
+        }
+        // Later changes build on this one, so stop checking the destination here
+        break;
+      } catch (Exception e) {
+        throw new MergeFailure(err, e);
       }
-      return ref.getObjectId();
+    }
+    if (!conflicts.isEmpty()) {
+      conflictsByBranch.put(branch, conflicts);
+    }
+    try {
+      pipeline.flush();
+    } catch (IOException e) {
+      throw new MergeFailure("Couldn't write merges to batch(" + batch.id + ")", e);
     }
   }
 
+  /** Returns an excluded patch set which psarg contains, or null if there is none. */
+  protected PatchSet.Id getExcludedDependency(
+      MergePipeline pipeline, Map<ObjectId, PatchSet.Id> excluded, PatchSetArgument psarg)
+      throws IOException, NoSuchRefException, BadRequestException {
+    for (Map.Entry<ObjectId, PatchSet.Id> e : excluded.entrySet()) {
+      if (pipeline.isMergedInto(e.getKey(), psarg.patchSet.commitId())) {
+        return e.getValue();
+      }
+    }
+    return null;
+  }
+
   protected void merge(Batch batch, Change change, PatchSet ps)
       throws Exception, IOException, NoSuchRefException, UnloggedFailure {
     BranchNameKey branch = change.getDest();
     Batch.Destination dest = batch.getDestination(branch);
-    dest.sha1 =
-        mergeBranchFactory
-            .create(
-                branch,
-                dest.sha1,
-                ps.refName(),
-                strategy.getMergeStrategy(),
-                fastForward.getFastForwardMode(),
-                message)
-            .call()
-            .getName();
-    dest.add(ps.id());
+    MergePipeline pipeline = getPipeline(branch, dest);
+    dest.sha1 = pipeline.merge(ps.refName()).getName();
+    ObjectId picked = pipeline.getLastPick();
+    dest.add(ps.id(), picked != null ? picked.getName() : null);
+  }
+
+  /** Merges to a destination all go through one pipeline, which is flushed once at the end. */
+  protected MergePipeline getPipeline(BranchNameKey branch, Batch.Destination dest)
+      throws UnloggedFailure {
+    MergePipeline pipeline = pipelinesByBranch.get(branch);
+    if (pipeline == null) {
+      pipeline =
+          mergePipelineFactory.create(
+              branch,
+              dest.sha1 != null ? dest.sha1 : dest.baseSha1,
+              strategy.getMergeStrategy(),
+              fastForward.getFastForwardMode(),
+              message);
+      pipeline.setDryRun(dryRun);
+      pipelinesByBranch.put(branch, pipeline);
+    }
+    return pipeline;
+  }
+
+  /** A merge conflict found by --dry-run, or a change left out by --exclude-conflicts. */
+  protected static class Conflict {
+    protected String project;
+    protected String ref;
+    protected int change;
+    protected int patchSet;
+    protected String message;
+    protected List<String> paths;
+
+    protected Conflict(PatchSetArgument psarg, String message) {
+      project = psarg.change.getProject().get();
+      ref = psarg.change.getDest().branch();
+      change = psarg.patchSet.id().changeId().get();
+      patchSet = psarg.patchSet.id().get();
+      this.message = message;
+    }
+
+    protected Conflict(PatchSetArgument psarg, MergeConflictException e) {
+      this(psarg, e.getMessage());
+      if (e instanceof MergeBuilder.ConflictException) {
+        paths = ((MergeBuilder.ConflictException) e).paths;
+      }
+    }
+  }
+
+  /** Output of --exclude-conflicts. */
+  protected static class ExclusionResult {
+    protected Batch batch;
+    protected List<Conflict> excluded;
+
+    protected ExclusionResult(Batch batch, List<Conflict> excluded) {
+      this.batch = batch;
+      this.excluded = excluded;
+    }
+  }
+
+  protected static class MergeFailure extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    protected MergeFailure(String err, Exception cause) {
+      super(cause.getMessage() == null ? err : err + ": " + cause.getMessage(), cause);
+    }
   }
 
   /* A Resolver which ensures that changes are eligible to merge before
@@ -198,48 +469,194 @@ public class MergeChangeCommand extends SshCommand {
 
       Destination(BranchNameKey branch) throws IOException, NoSuchRefException {
         sources.add(getTip(branch));
+        for (Batch.Destination dest : batch.listDestinations()) {
+          // Continue from what has already been merged to the batch
+          if (dest.sha1 != null && branch.equals(BranchNameKey.create(dest.project, dest.ref))) {
+            sources.add(ObjectId.fromString(dest.sha1));
+          }
+        }
       }
     }
 
-    protected Map<BranchNameKey, Destination> destinationsByBranches = new HashMap<>();
+    protected final Batch batch;
+    protected final boolean cherryPick;
+    protected Map<BranchNameKey, Destination> destinationsByBranches = new LinkedHashMap<>();
     protected List<PatchSetArgument> resolved = new ArrayList<>();
 
-    protected Resolver(Iterable<PatchSetArgument> psargs)
+    protected Resolver(Batch batch, Iterable<PatchSetArgument> psargs)
         throws Exception, IOException, NoSuchRefException, RepositoryNotFoundException {
+      this.batch = batch;
+      cherryPick = strategy.getMergeStrategy() instanceof CherryPickStrategy;
       add(psargs);
-      while (resolve()) {}
+      for (Map.Entry<BranchNameKey, Destination> e : destinationsByBranches.entrySet()) {
+        resolve(e.getKey().project(), e.getValue());
+      }
       for (Destination dest : destinationsByBranches.values()) {
         if (!dest.remaining.isEmpty()) {
           throw new ParentsNotOnBranchException(dest.remaining.get(0));
         }
       }
-      Collections.reverse(resolved); // Reduces merges
+      if (!cherryPick) {
+        Collections.reverse(resolved); // Reduces merges
+      }
     }
 
-    protected boolean resolve() throws IOException, RepositoryNotFoundException {
-      boolean found = false;
-      for (Destination dest : destinationsByBranches.values()) {
-        // If more dependencies are destined for the same branch than not,
-        // then resolving a branch as much as possible will reduce the
-        // total iterations required.
-        while (resolve(dest)) {
-          found = true;
+    /**
+     * Resolve the changes of a destination in passes over the remaining changes: a change is
+     * resolved once one of its parents is on the branch, or is contained in a change which was
+     * resolved in an earlier pass or earlier in the same pass.
+     *
+     * <p>Instead of scanning the remaining changes again for every pass, a single topological walk
+     * finds which parents are on the branch and which changes contain each of the other parents.
+     * The pass of each change is then the shortest path to it when a change contained in a later
+     * position costs an extra pass (a 0-1 BFS), and sorting by pass and position gives the order of
+     * the pass based scan.
+     *
+     * <p>When cherry-picking, only the changes themselves are picked (like Gerrit's cherry-pick
+     * submit type), so their parents do not need to be on the branch, see resolvePicks().
+     */
+    protected void resolve(Project.NameKey project, Destination dest) throws IOException {
+      List<PatchSetArgument> psargs = dest.remaining;
+      int n = psargs.size();
+      RevCommit[] commits = new RevCommit[n];
+      Map<RevCommit, BitSet> containedBy = new HashMap<>();
+      Set<RevCommit> notOnBranch = new HashSet<>();
+      RevWalk walk = repos.getRevWalk(project);
+      walk.reset();
+      walk.sort(RevSort.TOPO);
+      try {
+        for (int i = 0; i < n; i++) {
+          commits[i] = walk.parseCommit(psargs.get(i).patchSet.commitId());
+          containedBy.computeIfAbsent(commits[i], c -> new BitSet()).set(i);
+          walk.markStart(commits[i]);
+          for (RevCommit parent : commits[i].getParents()) {
+            walk.markStart(walk.parseCommit(parent));
+          }
         }
+        for (ObjectId source : dest.sources) {
+          walk.markUninteresting(walk.parseCommit(source));
+        }
+        for (RevCommit c : walk) { // Children before parents
+          notOnBranch.add(c);
+          BitSet changes = containedBy.get(c);
+          if (changes != null) {
+            for (RevCommit parent : c.getParents()) {
+              containedBy.computeIfAbsent(parent, p -> new BitSet()).or(changes);
+            }
+          }
+        }
+      } finally {
+        walk.sort(RevSort.NONE);
+        walk.reset();
+      }
+      if (cherryPick) {
+        resolvePicks(dest, commits, containedBy);
+        return;
       }
-      return found;
+
+      int[] passes = new int[n];
+      Arrays.fill(passes, Integer.MAX_VALUE);
+      List<List<Integer>> dependents = new ArrayList<>(n);
+      Deque<Integer> queue = new ArrayDeque<>();
+      for (int i = 0; i < n; i++) {
+        dependents.add(new ArrayList<>());
+      }
+      for (int i = 0; i < n; i++) {
+        RevCommit[] parents = commits[i].getParents();
+        boolean onBranch = parents.length == 0;
+        for (RevCommit parent : parents) {
+          onBranch |= !notOnBranch.contains(parent);
+        }
+        if (onBranch) {
+          passes[i] = 0;
+          queue.add(i);
+          continue;
+        }
+        for (RevCommit parent : parents) {
+          BitSet changes = containedBy.get(parent);
+          for (int j = changes.nextSetBit(0); j >= 0; j = changes.nextSetBit(j + 1)) {
+            if (j != i) {
+              dependents.get(j).add(i);
+            }
+          }
+        }
+      }
+      boolean[] done = new boolean[n];
+      while (!queue.isEmpty()) {
+        int j = queue.pollFirst();
+        if (done[j]) {
+          continue;
+        }
+        done[j] = true;
+        for (int i : dependents.get(j)) {
+          int pass = j < i ? passes[j] : passes[j] + 1;
+          if (pass < passes[i]) {
+            passes[i] = pass;
+            if (j < i) {
+              queue.addFirst(i);
+            } else {
+              queue.addLast(i);
+            }
+          }
+        }
+      }
+
+      List<Integer> order = new ArrayList<>();
+      List<PatchSetArgument> remaining = new ArrayList<>();
+      for (int i = 0; i < n; i++) {
+        if (done[i]) {
+          order.add(i);
+        } else {
+          remaining.add(psargs.get(i));
+        }
+      }
+      order.sort(Comparator.<Integer>comparingInt(i -> passes[i]).thenComparingInt(i -> i));
+      for (int i : order) {
+        resolved.add(psargs.get(i));
+        dest.sources.add(commits[i]);
+      }
+      dest.remaining = remaining;
     }
 
-    protected boolean resolve(Destination dest) throws IOException, RepositoryNotFoundException {
-      boolean found = false;
-      for (PatchSetArgument psarg : dest.remaining) {
-        if (isParentMergedInto(psarg, dest.sources)) {
-          found = true;
-          resolved.add(psarg);
-          dest.sources.add(psarg.patchSet.commitId());
+    /**
+     * Order the changes of a destination so that a change is picked after the changes of the batch
+     * which are its ancestors, and otherwise in the order they were given. Every change resolves,
+     * which lets a child of a change picked by an earlier batch be picked without a rebase.
+     */
+    protected void resolvePicks(
+        Destination dest, RevCommit[] commits, Map<RevCommit, BitSet> containedBy) {
+      List<PatchSetArgument> psargs = dest.remaining;
+      int n = psargs.size();
+      int[] ancestors = new int[n];
+      List<List<Integer>> dependents = new ArrayList<>(n);
+      for (int j = 0; j < n; j++) {
+        List<Integer> children = new ArrayList<>();
+        BitSet changes = containedBy.get(commits[j]);
+        for (int i = changes.nextSetBit(0); i >= 0; i = changes.nextSetBit(i + 1)) {
+          if (!commits[i].equals(commits[j])) {
+            children.add(i);
+            ancestors[i]++;
+          }
+        }
+        dependents.add(children);
+      }
+      PriorityQueue<Integer> ready = new PriorityQueue<>();
+      for (int i = 0; i < n; i++) {
+        if (ancestors[i] == 0) {
+          ready.add(i);
         }
       }
-      dest.remaining.removeAll(resolved);
-      return found;
+      while (!ready.isEmpty()) {
+        int j = ready.poll();
+        resolved.add(psargs.get(j));
+        dest.sources.add(commits[j]);
+        for (int i : dependents.get(j)) {
+          if (--ancestors[i] == 0) {
+            ready.add(i);
+          }
+        }
+      }
+      dest.remaining = new ArrayList<>();
     }
 
     protected void add(Iterable<PatchSetArgument> psargs) throws IOException, NoSuchRefException {
@@ -263,27 +680,4 @@ public class MergeChangeCommand extends SshCommand {
       return dest;
     }
   }
-
-  protected List<ObjectId> getParents(PatchSetArgument psarg) throws IOException {
-    PatchSet.Id id = psarg.patchSet.id();
-    List<ObjectId> parents = parentsByPsarg.get(id);
-    if (parents == null) {
-      parents = loadParents(psarg);
-      parentsByPsarg.put(id, parents);
-    }
-    return parents;
-  }
-
-  protected List<ObjectId> loadParents(PatchSetArgument psarg) throws IOException {
-    try (Repository repo = repoManager.openRepository(psarg.change.getProject());
-        RevWalk revWalk = new RevWalk(repo)) {
-      List<ObjectId> parents = new ArrayList<>();
-      ObjectId id = psarg.patchSet.commitId();
-      RevCommit c = revWalk.parseCommit(id);
-      for (RevCommit parent : c.getParents()) {
-        parents.add(parent);
-      }
-      return parents;
-    }
-  }
 }
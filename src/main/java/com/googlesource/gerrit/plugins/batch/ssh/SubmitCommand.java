@@ -14,14 +14,19 @@
 
 package com.googlesource.gerrit.plugins.batch.ssh;
 
+import com.google.gerrit.extensions.restapi.MergeConflictException;
 import com.google.gerrit.json.OutputFormat;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.sshd.CommandMetaData;
 import com.google.gerrit.sshd.SshCommand;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.batch.Batch;
+import com.googlesource.gerrit.plugins.batch.BatchStore;
 import com.googlesource.gerrit.plugins.batch.BatchSubmitter;
 import com.googlesource.gerrit.plugins.batch.exception.NoSuchBatchException;
+import com.googlesource.gerrit.plugins.batch.exception.StaleBatchException;
+import java.util.ArrayList;
+import java.util.List;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
@@ -32,19 +37,59 @@ public class SubmitCommand extends SshCommand {
   @Option(name = "--force", required = true, usage = "force push the batch updates")
   protected boolean force;
 
+  @Option(name = "--parallel", usage = "submit the destinations in different projects concurrently")
+  protected boolean parallel;
+
+  @Option(
+      name = "--rebuild-if-stale",
+      usage = "merge the stale destinations again onto their new tips instead of submitting")
+  protected boolean rebuildIfStale;
+
   @Argument(metaVar = "BATCH-ID", usage = "id of the batch to submit")
   protected String batchId;
 
   @Inject protected BatchSubmitter impl;
+  @Inject protected BatchStore store;
 
   @Override
   public void run() throws Exception {
     try {
-      Batch batch = impl.submit(batchId);
+      if (rebuildIfStale) {
+        rebuildIfStale();
+      }
+      Batch batch = impl.submit(batchId, parallel);
       out.write((OutputFormat.JSON.newGson().toJson(batch) + "\n").getBytes(ENC));
-    } catch (NoSuchBatchException | IllegalStateException | PermissionBackendException e) {
+    } catch (NoSuchBatchException
+        | IllegalStateException
+        | PermissionBackendException
+        | StaleBatchException
+        | MergeConflictException e) {
       throw new UnloggedFailure(1, e.getMessage());
     }
     out.flush();
   }
+
+  /**
+   * Rebuild the stale destinations, and if there were any, print the rebuilt batch and fail so that
+   * the new merges can be tested before the batch is submitted again.
+   */
+  protected void rebuildIfStale() throws Exception {
+    Batch batch = store.read(batchId);
+    List<Batch.Destination> rebuilt = impl.rebuildIfStale(batch);
+    if (!rebuilt.isEmpty()) {
+      batch.version = null;
+      out.write((OutputFormat.JSON.newGson().toJson(batch) + "\n").getBytes(ENC));
+      out.flush();
+      List<String> names = new ArrayList<>();
+      for (Batch.Destination dest : rebuilt) {
+        names.add(dest.project + ":" + dest.ref);
+      }
+      throw new UnloggedFailure(
+          1,
+          "Batch "
+              + batchId
+              + " was stale and has been rebuilt, it was not submitted: "
+              + String.join(", ", names));
+    }
+  }
 }
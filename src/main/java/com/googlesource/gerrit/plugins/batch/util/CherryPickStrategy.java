@@ -0,0 +1,36 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.batch.util;
+
+import org.eclipse.jgit.merge.StrategyResolve;
+
+/**
+ * Marks that MergeBuilder should cherry-pick each source onto the destination instead of merging
+ * it, so that a batch builds a linear history. The content is merged with the resolve merger, which
+ * this inherits.
+ *
+ * <p>This is deliberately not registered with MergeStrategy.register(), the JGit registry is global
+ * and would outlive a plugin reload.
+ */
+public class CherryPickStrategy extends StrategyResolve {
+  public static final String NAME = "cherry-pick";
+  public static final CherryPickStrategy INSTANCE = new CherryPickStrategy();
+
+  protected CherryPickStrategy() {}
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.googlesource.gerrit.plugins.batch.util;
 
+import com.google.common.collect.ImmutableList;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.restapi.MergeConflictException;
@@ -23,14 +24,18 @@ import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.merge.Merger;
+import org.eclipse.jgit.merge.ResolveMerger;
 import org.eclipse.jgit.merge.ThreeWayMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -76,6 +81,18 @@ public class MergeBuilder implements Callable<ObjectId> {
     }
   }
 
+  /** A merge conflict which lists the conflicting paths, when the merger reports them. */
+  public static class ConflictException extends MergeConflictException {
+    private static final long serialVersionUID = 1L;
+
+    public final List<String> paths;
+
+    public ConflictException(List<String> paths) {
+      super(paths.isEmpty() ? "Merge conflict" : "Merge conflict in " + String.join(", ", paths));
+      this.paths = ImmutableList.copyOf(paths);
+    }
+  }
+
   public interface Factory {
     MergeBuilder create(
         @Assisted Project.NameKey project,
@@ -128,38 +145,76 @@ public class MergeBuilder implements Callable<ObjectId> {
   }
 
   public ObjectId build(Repository repo) throws IOException, MergeConflictException {
-    try (RevWalk revWalk = new RevWalk(repo)) {
-      RevCommit firstParentCommit = revWalk.lookupCommit(firstParent);
-      RevCommit secondParentCommit = revWalk.lookupCommit(secondParent);
-      if (revWalk.isMergedInto(secondParentCommit, firstParentCommit)) {
-        return firstParent; // already up to date
-      }
-      if (fastForwardMode != FastForwardMode.NO_FF
-          && revWalk.isMergedInto(firstParentCommit, secondParentCommit)) {
-        return secondParent; // Fast forward merge
-      }
-      if (fastForwardMode == FastForwardMode.FF_ONLY) {
-        throw new MergeConflictException("Merge aborted"); // because not FF
-      }
-      return merge(repo, revWalk);
+    try (ObjectInserter ins = repo.newObjectInserter();
+        ObjectReader reader = ins.newReader();
+        RevWalk revWalk = new RevWalk(reader)) {
+      ObjectId result = build(repo, revWalk, ins);
+      ins.flush();
+      return result;
+    }
+  }
+
+  /**
+   * Build the merge with the given RevWalk and ObjectInserter without flushing the inserter, so
+   * that several merges can be pipelined and flushed once. The RevWalk must read through a reader
+   * of the inserter so that it sees the objects of unflushed merges.
+   */
+  public ObjectId build(Repository repo, RevWalk revWalk, ObjectInserter ins)
+      throws IOException, MergeConflictException {
+    if (Reachability.isMergedInto(revWalk, secondParent, firstParent)) {
+      return firstParent; // already up to date
+    }
+    if (fastForwardMode != FastForwardMode.NO_FF
+        && Reachability.isMergedInto(revWalk, firstParent, secondParent)) {
+      return secondParent; // Fast forward merge
     }
+    if (fastForwardMode == FastForwardMode.FF_ONLY) {
+      throw new MergeConflictException("Merge aborted"); // because not FF
+    }
+    return merge(repo, revWalk, ins);
   }
 
-  protected ObjectId merge(Repository repo, RevWalk revWalk)
+  protected ObjectId merge(Repository repo, RevWalk revWalk, ObjectInserter ins)
       throws IOException, MergeConflictException {
-    ThreeWayMerger merger = getMerger(repo);
+    ThreeWayMerger merger = getMerger(repo, ins);
+    RevCommit picked = null;
+    if (isCherryPick()) {
+      picked = revWalk.parseCommit(secondParent);
+      if (picked.getParentCount() > 0) {
+        // Apply only the changes of the picked commit itself
+        merger.setBase(picked.getParent(0));
+      }
+    }
     if (!merger.merge(firstParent, secondParent)) {
-      throw new MergeConflictException("Merge conflict");
+      List<String> paths = new ArrayList<>();
+      if (merger instanceof ResolveMerger) {
+        paths.addAll(((ResolveMerger) merger).getUnmergedPaths());
+      }
+      throw new ConflictException(paths);
+    }
+    if (picked != null) {
+      RevCommit first = revWalk.parseCommit(firstParent);
+      if (merger.getResultTreeId().equals(first.getTree())) {
+        return firstParent; // Nothing left to pick, already applied
+      }
+      return ins.insert(buildCherryPick(merger, picked));
     }
     message = defaultMessage(revWalk, message);
-    return insert(merger, buildCommit(merger));
+    return ins.insert(buildCommit(merger));
+  }
+
+  public boolean isCherryPick() {
+    return strategy instanceof CherryPickStrategy;
   }
 
-  protected ThreeWayMerger getMerger(Repository repo) {
+  protected ThreeWayMerger getMerger(Repository repo, ObjectInserter ins) {
+    if (isCherryPick()) {
+      return (ThreeWayMerger) strategy.newMerger(ins, repo.getConfig());
+    }
     if (strategy == MergeStrategy.RESOLVE) {
-      return MergeStrategy.RESOLVE.newMerger(repo, true);
+      return (ThreeWayMerger) MergeStrategy.RESOLVE.newMerger(ins, repo.getConfig());
     }
-    return MergeStrategy.SIMPLE_TWO_WAY_IN_CORE.newMerger(repo);
+    return (ThreeWayMerger) MergeStrategy.SIMPLE_TWO_WAY_IN_CORE.newMerger(ins, repo.getConfig());
   }
 
   protected CommitBuilder buildCommit(Merger merger) {
@@ -173,6 +228,18 @@ public class MergeBuilder implements Callable<ObjectId> {
     return mergeCommit;
   }
 
+  /** A single parent commit which keeps the author and the message of the picked commit. */
+  protected CommitBuilder buildCherryPick(Merger merger, RevCommit picked) {
+    final CommitBuilder pickCommit = new CommitBuilder();
+    pickCommit.setTreeId(merger.getResultTreeId());
+    pickCommit.setParentId(firstParent);
+    pickCommit.setAuthor(picked.getAuthorIdent());
+    pickCommit.setCommitter(
+        user.newCommitterIdent(new Timestamp(System.currentTimeMillis()), gerrit.getTimeZone()));
+    pickCommit.setMessage(picked.getFullMessage());
+    return pickCommit;
+  }
+
   protected String defaultMessage(RevWalk walk, String message) {
     if (message == null) {
       try {
@@ -184,12 +251,4 @@ public class MergeBuilder implements Callable<ObjectId> {
     }
     return message;
   }
-
-  protected ObjectId insert(Merger merger, CommitBuilder commit) throws IOException {
-    try (ObjectInserter objInserter = merger.getObjectInserter()) {
-      ObjectId mergeCommitId = objInserter.insert(commit);
-      objInserter.flush();
-      return mergeCommitId;
-    }
-  }
 }
@@ -0,0 +1,127 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.batch.util;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.serialize.StringCacheSerializer;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.batch.util.MergeBuilder.FastForwardMode;
+import java.time.Duration;
+import java.util.List;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.merge.MergeStrategy;
+
+/**
+ * Persistent cache of merge results, so that merging the same changes to the same destination again
+ * (for example when a CI system rebuilds a batch) does not redo the merges.
+ *
+ * <p>A result is either the id of the resulting commit, or the paths of the recorded conflict.
+ * Callers must check that a cached commit still exists before using it. Conflicts are only kept for
+ * {@link #CONFLICT_MAX_AGE}, since the merge settings of the repository are not part of the key.
+ */
+@Singleton
+public class MergeCache {
+  protected static final String CACHE_NAME = "merge_results";
+  protected static final String COMMIT = "commit:";
+  protected static final String CONFLICT = "conflict:";
+  protected static final char SEPARATOR = '\0'; // Cannot be part of a path
+
+  public static final Duration CONFLICT_MAX_AGE = Duration.ofDays(1);
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        persist(CACHE_NAME, String.class, String.class)
+            .version(2)
+            .diskLimit(32 << 20)
+            .keySerializer(StringCacheSerializer.INSTANCE)
+            .valueSerializer(StringCacheSerializer.INSTANCE);
+        bind(MergeCache.class);
+      }
+    };
+  }
+
+  protected final Cache<String, String> cache;
+
+  @Inject
+  protected MergeCache(@Named(CACHE_NAME) Cache<String, String> cache) {
+    this.cache = cache;
+  }
+
+  public static String key(
+      Project.NameKey project,
+      Account.Id author,
+      MergeStrategy strategy,
+      FastForwardMode fastForwardMode,
+      ObjectId firstParent,
+      ObjectId secondParent,
+      String message) {
+    return String.join(
+        "\n",
+        project.get(),
+        String.valueOf(author.get()),
+        strategy.getName(),
+        fastForwardMode.getName(),
+        firstParent.name(),
+        secondParent.name(),
+        // Distinguish a null message (use the default) from an empty one
+        message == null ? "" : "m" + message);
+  }
+
+  /**
+   * Returns the cached commit id, or null if there is none.
+   *
+   * @throws MergeBuilder.ConflictException if a conflict was recorded for the key.
+   */
+  public ObjectId get(String key) throws MergeBuilder.ConflictException {
+    String value = cache.getIfPresent(key);
+    if (value == null) {
+      return null;
+    }
+    if (value.startsWith(CONFLICT)) {
+      List<String> parts = Splitter.on(SEPARATOR).splitToList(value.substring(CONFLICT.length()));
+      if (TimeUtil.nowMs() - Long.parseLong(parts.get(0)) > CONFLICT_MAX_AGE.toMillis()) {
+        cache.invalidate(key);
+        return null;
+      }
+      throw new MergeBuilder.ConflictException(parts.subList(1, parts.size()));
+    }
+    return ObjectId.fromString(value.substring(COMMIT.length()));
+  }
+
+  public void put(String key, ObjectId result) {
+    cache.put(key, COMMIT + result.name());
+  }
+
+  public void putConflict(String key, MergeBuilder.ConflictException conflict) {
+    StringBuilder value = new StringBuilder(CONFLICT).append(TimeUtil.nowMs());
+    for (String path : conflict.paths) {
+      value.append(SEPARATOR).append(path);
+    }
+    cache.put(key, value.toString());
+  }
+
+  public void invalidate(String key) {
+    cache.invalidate(key);
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.batch.util;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.BooleanProjectConfig;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MergeConflictException;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import com.googlesource.gerrit.plugins.batch.util.MergeBuilder.FastForwardMode;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Merges a sequence of sources onto one destination branch through a single Repository,
+ * ObjectInserter and RevWalk, each merge building on the result of the previous one.
+ *
+ * <p>The merge objects are only written by flush(), results must not be used outside of the
+ * pipeline before it is flushed. Closing a pipeline without flushing discards its merges.
+ */
+public class MergePipeline implements AutoCloseable {
+  public interface Factory {
+    MergePipeline create(
+        @Assisted BranchNameKey destBranch,
+        @Assisted("destSha") @Nullable String destSha,
+        @Assisted @Nullable MergeStrategy strategy,
+        @Assisted @Nullable FastForwardMode fastForwardMode,
+        @Assisted("message") @Nullable String message);
+  }
+
+  protected final GitRepositoryManager repoManager;
+  protected final ProjectCache projectCache;
+  protected final MergeBuilder.Factory builderFactory;
+  protected final MergeCache mergeCache;
+  protected final IdentifiedUser user;
+  protected final Project.NameKey projectName;
+  protected final String destName;
+  protected ObjectId destId;
+  protected final String message;
+  protected MergeStrategy strategy;
+  protected FastForwardMode fastForwardMode = FastForwardMode.FF;
+
+  protected Repository repo;
+  protected ObjectInserter ins;
+  protected ObjectReader reader;
+  protected RevWalk walk;
+  protected boolean dryRun;
+  protected ObjectId lastPick;
+  /** Cache entries for merges which are not flushed yet. */
+  protected final Map<String, ObjectId> unflushed = new LinkedHashMap<>();
+
+  @Inject
+  MergePipeline(
+      GitRepositoryManager repoManager,
+      ProjectCache projectCache,
+      MergeBuilder.Factory builderFactory,
+      MergeCache mergeCache,
+      IdentifiedUser user,
+      @Assisted BranchNameKey destBranch,
+      @Assisted("destSha") @Nullable String destSha,
+      @Assisted @Nullable MergeStrategy strategy,
+      @Assisted @Nullable FastForwardMode fastForwardMode,
+      @Assisted("message") @Nullable String message) {
+    this.repoManager = repoManager;
+    this.projectCache = projectCache;
+    this.builderFactory = builderFactory;
+    this.mergeCache = mergeCache;
+    this.user = user;
+    this.projectName = destBranch.project();
+    destName = RefNames.fullName(destBranch.branch());
+    if (destSha != null) {
+      this.destId = ObjectId.fromString(destSha);
+    }
+    this.message = message;
+    this.strategy = strategy;
+    if (fastForwardMode != null) {
+      this.fastForwardMode = fastForwardMode;
+    }
+  }
+
+  /**
+   * Merge into memory only: nothing is written to the repository, flush() does nothing and the
+   * merge cache is neither used nor updated. Must be set before the first merge.
+   */
+  public void setDryRun(boolean dryRun) {
+    this.dryRun = dryRun;
+  }
+
+  /** Merge srcName onto the result of the previous merge, and return the new result. */
+  public ObjectId merge(String srcName)
+      throws IOException, NoSuchRefException, BadRequestException, MergeConflictException {
+    open();
+    ObjectId srcId = repo.resolve(srcName);
+    if (srcId == null) {
+      throw new BadRequestException("Invalid Revision");
+    }
+    String key =
+        MergeCache.key(
+            projectName, user.getAccountId(), strategy, fastForwardMode, destId, srcId, message);
+    ObjectId merged = dryRun ? null : mergeCache.get(key);
+    if (merged != null && !reader.has(merged)) {
+      mergeCache.invalidate(key); // Pruned since it was cached
+      merged = null;
+    }
+    if (merged == null) {
+      try {
+        merged =
+            builderFactory
+                .create(projectName, message, strategy, fastForwardMode, destId, srcId)
+                .build(repo, walk, ins);
+      } catch (MergeBuilder.ConflictException e) {
+        if (!dryRun) {
+          mergeCache.putConflict(key, e);
+        }
+        throw e;
+      }
+      if (!dryRun) {
+        unflushed.put(key, merged);
+      }
+    }
+    // A cherry-pick which neither fast forwarded nor was already applied made a new commit
+    lastPick =
+        strategy instanceof CherryPickStrategy && !merged.equals(destId) && !merged.equals(srcId)
+            ? merged
+            : null;
+    destId = merged;
+    return merged;
+  }
+
+  /** Returns the commit the last merge cherry-picked its source to, or null if it picked none. */
+  public ObjectId getLastPick() {
+    return lastPick;
+  }
+
+  /** Returns true if needle is reachable from haystack, including unflushed merges. */
+  public boolean isMergedInto(ObjectId needle, ObjectId haystack)
+      throws IOException, NoSuchRefException, BadRequestException {
+    open();
+    return Reachability.isMergedInto(walk, needle, haystack);
+  }
+
+  /** Write the objects of all merges so far. */
+  public void flush() throws IOException {
+    if (ins != null && !dryRun) {
+      ins.flush();
+      for (Map.Entry<String, ObjectId> e : unflushed.entrySet()) {
+        mergeCache.put(e.getKey(), e.getValue());
+      }
+      unflushed.clear();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (repo != null) {
+      walk.close();
+      reader.close();
+      ins.close();
+      repo.close();
+      repo = null;
+    }
+  }
+
+  protected void open() throws IOException, NoSuchRefException, BadRequestException {
+    if (repo != null) {
+      return;
+    }
+    repo = repoManager.openRepository(projectName);
+    ins = dryRun ? new InMemoryInserter(repo) : repo.newObjectInserter();
+    reader = ins.newReader();
+    walk = new RevWalk(reader);
+    Ref destRef = repo.getRefDatabase().exactRef(destName);
+    if (destRef == null) {
+      throw new NoSuchRefException(destName);
+    }
+    if (destId == null) {
+      destId = repo.resolve(destName);
+      if (destId == null) {
+        throw new BadRequestException("Invalid Revision");
+      }
+    }
+    strategy = defaultStrategy(strategy);
+  }
+
+  protected MergeStrategy defaultStrategy(MergeStrategy strategy) {
+    if (strategy == null) {
+      Optional<ProjectState> project = projectCache.get(projectName);
+      if (project.isPresent() && project.get().is(BooleanProjectConfig.USE_CONTENT_MERGE)) {
+        return MergeStrategy.RESOLVE;
+      }
+      return MergeStrategy.SIMPLE_TWO_WAY_IN_CORE;
+    }
+    return strategy;
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.batch.util;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.stream.Stream;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Reachability checks which use the bitmap index of the repository when it has one.
+ *
+ * <p>With bitmaps, only the commits between the haystack and the nearest bitmapped commits are
+ * walked, instead of everything down to the needle (or to the root when the needle is not
+ * reachable). The ObjectReader picks the checker, without bitmaps it walks the commits like
+ * RevWalk.isMergedInto().
+ *
+ * <p>Like RevWalk.isMergedInto(), the checks reset the walk, so they must not be used while the
+ * walk is iterating.
+ */
+public class Reachability {
+  /** Returns true if needle is reachable from haystack (or is haystack). */
+  public static boolean isMergedInto(RevWalk walk, AnyObjectId needle, AnyObjectId haystack)
+      throws IOException {
+    if (needle.equals(haystack)) {
+      return true;
+    }
+    RevCommit needleCommit = walk.parseCommit(needle);
+    RevCommit haystackCommit = walk.parseCommit(haystack);
+    return !walk.getObjectReader()
+        .createReachabilityChecker(walk)
+        .areAllReachable(ImmutableList.of(needleCommit), Stream.of(haystackCommit))
+        .isPresent();
+  }
+
+  private Reachability() {}
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.batch.util;
+
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Keeps one open Repository and RevWalk per project until closed, so that commits parsed while
+ * resolving many changes of the same project are only parsed once.
+ *
+ * <p>Not thread safe, a context is meant to be used by a single command.
+ */
+public class RepositoryContext implements AutoCloseable {
+  protected static class ProjectContext {
+    protected final Repository repo;
+    protected final RevWalk walk;
+
+    protected ProjectContext(Repository repo) {
+      this.repo = repo;
+      walk = new RevWalk(repo);
+      walk.setRetainBody(false);
+    }
+
+    protected void close() {
+      walk.close();
+      repo.close();
+    }
+  }
+
+  protected final GitRepositoryManager repoManager;
+  protected final Map<Project.NameKey, ProjectContext> contextsByProject = new HashMap<>();
+
+  @Inject
+  protected RepositoryContext(GitRepositoryManager repoManager) {
+    this.repoManager = repoManager;
+  }
+
+  public Repository getRepository(Project.NameKey project) throws IOException {
+    return get(project).repo;
+  }
+
+  public RevWalk getRevWalk(Project.NameKey project) throws IOException {
+    return get(project).walk;
+  }
+
+  public RevCommit parseCommit(Project.NameKey project, ObjectId id) throws IOException {
+    return getRevWalk(project).parseCommit(id);
+  }
+
+  public boolean isMergedInto(Project.NameKey project, ObjectId needle, ObjectId haystack)
+      throws IOException {
+    return Reachability.isMergedInto(getRevWalk(project), needle, haystack);
+  }
+
+  public ObjectId getTip(BranchNameKey branch) throws IOException, NoSuchRefException {
+    Ref ref = getRepository(branch.project()).getRefDatabase().exactRef(branch.branch());
+    if (ref == null) {
+      throw new NoSuchRefException(branch.toString());
+    }
+    return ref.getObjectId();
+  }
+
+  protected ProjectContext get(Project.NameKey project) throws IOException {
+    ProjectContext context = contextsByProject.get(project);
+    if (context == null) {
+      context = new ProjectContext(repoManager.openRepository(project));
+      contextsByProject.put(project, context);
+    }
+    return context;
+  }
+
+  @Override
+  public void close() {
+    for (ProjectContext context : contextsByProject.values()) {
+      context.close();
+    }
+    contextsByProject.clear();
+  }
+}
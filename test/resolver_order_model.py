@@ -0,0 +1,123 @@
+#!/usr/bin/env python
+#
+# Randomized model check of the order in which merge-change resolves the
+# changes of a destination (MergeChangeCommand.Resolver.resolve()).
+#
+# The resolver used to scan the remaining changes in passes: a change
+# resolved once one of its parents was on the branch or was contained in a
+# change resolved earlier (in an earlier pass, or earlier in the same pass).
+# It now does a single walk and computes the pass of each change as a
+# shortest path (a 0-1 BFS), then sorts by pass and position. This checks
+# on random commit graphs that both give the same order.
+#
+# Usage: resolver_order_model.py [trials] [seed]
+
+import random
+import sys
+from collections import deque
+
+
+def ancestors(graph, commit):
+    """Returns commit and all of its ancestors."""
+    seen = set()
+    stack = [commit]
+    while stack:
+        c = stack.pop()
+        if c not in seen:
+            seen.add(c)
+            stack.extend(graph[c])
+    return seen
+
+
+def random_case(rnd):
+    """Returns (graph, tip, changes), graph maps a commit to its parents."""
+    n = rnd.randint(3, 14)
+    graph = {}
+    for c in range(n):
+        parents = rnd.choice([0, 1, 1, 1, 2]) if c > 0 else 0
+        graph[c] = rnd.sample(range(c), min(parents, c))
+    tip = rnd.randrange(n)
+    on_branch = ancestors(graph, tip)
+    candidates = [c for c in range(n) if c not in on_branch]
+    if not candidates:
+        return None
+    changes = rnd.sample(candidates, rnd.randint(1, len(candidates)))
+    rnd.shuffle(changes)
+    return graph, tip, changes
+
+
+def scan_order(graph, tip, changes):
+    """The original resolver, repeated scans over the remaining changes."""
+    sources = {tip}
+    remaining = list(changes)
+    resolved = []
+
+    def merged(parent):
+        return any(parent in ancestors(graph, s) for s in sources)
+
+    while True:
+        found = False
+        for c in remaining:
+            if not graph[c] or any(merged(p) for p in graph[c]):
+                found = True
+                resolved.append(c)
+                sources.add(c)
+        remaining = [c for c in remaining if c not in resolved]
+        if not found:
+            return resolved
+
+
+def pass_order(graph, tip, changes):
+    """The current resolver, passes computed with a 0-1 BFS."""
+    on_branch = ancestors(graph, tip)
+    n = len(changes)
+    passes = [None] * n
+    dependents = [[] for _ in range(n)]
+    queue = deque()
+    for i, c in enumerate(changes):
+        if not graph[c] or any(p in on_branch for p in graph[c]):
+            passes[i] = 0
+            queue.append(i)
+            continue
+        for p in graph[c]:
+            for j, other in enumerate(changes):
+                if j != i and p in ancestors(graph, other):
+                    dependents[j].append(i)
+    done = [False] * n
+    while queue:
+        j = queue.popleft()
+        if done[j]:
+            continue
+        done[j] = True
+        for i in dependents[j]:
+            cost = passes[j] if j < i else passes[j] + 1
+            if passes[i] is None or cost < passes[i]:
+                passes[i] = cost
+                if j < i:
+                    queue.appendleft(i)
+                else:
+                    queue.append(i)
+    order = sorted((i for i in range(n) if done[i]), key=lambda i: (passes[i], i))
+    return [changes[i] for i in order]
+
+
+def main(argv):
+    trials = int(argv[1]) if len(argv) > 1 else 3000
+    seed = int(argv[2]) if len(argv) > 2 else 0
+    rnd = random.Random(seed)
+    checked = 0
+    for _ in range(trials):
+        case = random_case(rnd)
+        if case is None:
+            continue
+        old, new = scan_order(*case), pass_order(*case)
+        if old != new:
+            print("MISMATCH graph=%s tip=%s changes=%s scan=%s passes=%s" % (case + (old, new)))
+            return 1
+        checked += 1
+    print("PASSED - resolver order model test (%d cases)" % checked)
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
@@ -8,6 +8,9 @@ json_jval_by() { # json index|'key' > json_value
     echo "$1" |\
     python -c "import json,sys;print json.dumps(json.load(sys.stdin)[$2])"
 }
+json_len() { # json > length
+    echo "$1" | python -c "import json,sys;print len(json.load(sys.stdin))"
+}
 json_val_by_key() { json_val_by "$1" "'$2'" ; }  # json key > value
 json_jval_by_key() { json_jval_by "$1" "'$2'" ; }  # json key > json_value
 
@@ -60,11 +63,15 @@ b_destination() { # index  # > batch_destination[index]
 d_ref() { json_val_by_key "$1" ref ; } # destination > ref
 d_project() { json_val_by_key "$1" project ; } # destination > project
 d_sha1() { json_val_by_key "$1" sha1 ; } # destination > sha1
+d_base() { json_val_by_key "$1" base_sha1 ; } # destination > base_sha1
+d_changes() { json_jval_by_key "$1" changes ; } # destination > changes
 d_download() { json_val_by_key "$1" download_ref ; } # destination > download_ref
 
 # ---- Parsers ----
 query_by() { echo "$1" | awk '/^ *'"$2"':/{print $2}' ; } # qchange key > val
 
+change_rev() { query_by "$(query "$1" --current-patch-set)" "revision" ; } # ch > sha
+
 get_change_num() { # < gerrit_push_response > changenum
     local url=$(awk '$NF ~ /\[NEW\]/ { print $2 }')
     echo "${url##*\/}" | tr -d -c '[:digit:]'
@@ -213,6 +220,12 @@ result "$GROUP" "$delete"
 ! delete=$(batchssh delete "$id")
 result "$GROUP retry" "$delete"
 
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+bjson=$(batchssh merge-change --save "$ch1",1)
+id=$(b_id)
+! delete=$(batchssh delete "$id")
+result "$GROUP open" "$delete"
+
 
 setupGroup "ls-batches" "List Batches" # -------------
 
@@ -269,4 +282,296 @@ result_out "$GROUP submit state" "DELETED" "$(b_state)"
 result_out "$GROUP submit change_state" "MERGED" \
     "$(query_by "$(query "$ch1")" "status")"
 
+
+setupGroup "stale" "Submit a batch whose branch moved" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close "$ch1",1)
+stale_id=$(b_id)
+stale_sha1=$(d_sha1 "$(b_destination 0)")
+stale_download=$(d_download "$(b_destination 0)")
+bjson=$(batchssh merge-change --close "$ch2",1)
+q batchssh submit --force "$(b_id)"
+tip=$(remote_show "$DEST_REF")
+! out=$(batchssh submit --force "$stale_id")
+result "$GROUP submit" "$out"
+echo "$out" | grep -q "is stale"
+result "$GROUP submit message" "$out"
+result_out "$GROUP submit dest_commit" "$tip" "$(remote_show "$DEST_REF")"
+result_out "$GROUP submit download_ref" "$stale_sha1" "$(remote_show "$stale_download")"
+result_out "$GROUP submit change_state" "NEW" \
+    "$(query_by "$(query "$ch1")" "status")"
+
+setupGroup "dry-run" "Merge Change --dry-run" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+out=$(batchssh merge-change --dry-run "$ch1",1 "$ch2",1)
+result_out "$GROUP clean" "[]" "$out"
+ch3=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+! out=$(batchssh merge-change --dry-run "$ch1",1 "$ch3",1)
+result "$GROUP conflict" "$out"
+conflicts=$(echo "$out" | head -1)
+result_out "$GROUP conflict count" "1" "$(json_len "$conflicts")"
+conflict=$(json_jval_by "$conflicts" 0)
+# Independent changes are merged in reverse order, so ch1 is the one to conflict
+result_out "$GROUP conflict change" "$ch1" "$(json_val_by_key "$conflict" change)"
+result_out "$GROUP conflict paths" '["fileA"]' "$(json_jval_by_key "$conflict" paths)"
+
+
+setupGroup "exclude-conflicts" "Merge Change --exclude-conflicts" # ----------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch3=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+out=$(batchssh merge-change --close --exclude-conflicts "$ch1",1 "$ch2",1 "$ch3",1)
+result "$GROUP" "$out"
+excluded=$(json_jval_by_key "$out" excluded)
+result_out "$GROUP excluded count" "1" "$(json_len "$excluded")"
+result_out "$GROUP excluded change" "$ch1" \
+    "$(json_val_by_key "$(json_jval_by "$excluded" 0)" change)"
+bjson=$(json_jval_by_key "$out" batch)
+result_out "$GROUP state" "CLOSED" "$(b_state)"
+result_out "$GROUP merged count" "2" "$(json_len "$(d_changes "$(b_destination 0)")")"
+
+
+setupGroup "merge cache" "Merge results from the merge cache" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+out=$(batchssh merge-change --close --exclude-conflicts "$ch1",1 "$ch2",1)
+excluded=$(json_jval_by_key "$out" excluded)
+bjson=$(json_jval_by_key "$out" batch)
+sha1=$(d_sha1 "$(b_destination 0)")
+# The same merges again, now answered from the cache
+out=$(batchssh merge-change --close --exclude-conflicts "$ch1",1 "$ch2",1)
+result "$GROUP" "$out"
+result_out "$GROUP conflict" "$excluded" "$(json_jval_by_key "$out" excluded)"
+result_out "$GROUP conflict paths" '["fileA"]' \
+    "$(json_jval_by_key "$(json_jval_by "$excluded" 0)" paths)"
+bjson=$(json_jval_by_key "$out" batch)
+result_out "$GROUP commit" "$sha1" "$(d_sha1 "$(b_destination 0)")"
+
+
+setupGroup "cherry-pick" "Merge Change --strategy cherry-pick" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close --strategy cherry-pick "$ch1",1 "$ch2",1)
+result "$GROUP" "$bjson"
+id=$(b_id)
+dest1=$(b_destination 0)
+sha1=$(d_sha1 "$dest1")
+# ch1 fast forwards, ch2 is picked onto it, so there is no merge commit
+result_out "$GROUP linear" "$(change_rev "$ch1")" "$(get_ref_parents "$(d_download "$dest1")")"
+result_out "$GROUP picked_sha1" "$sha1" \
+    "$(json_val_by_key "$(json_jval_by "$(d_changes "$dest1")" 1)" picked_sha1)"
+bjson=$(batchssh submit --force "$id")
+result "$GROUP submit" "$bjson"
+result_out "$GROUP submit dest_commit" "$sha1" "$(remote_show "$DEST_REF")"
+result_out "$GROUP submit change_state" "MERGED" \
+    "$(query_by "$(query "$ch2")" "status")"
+# The picked commit is closed as a new patch set of the change
+result_out "$GROUP submit picked patch set" "$sha1" "$(change_rev "$ch2")"
+
+
+setupGroup "rebuild-if-stale" "Submit --rebuild-if-stale" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close "$ch1",1)
+stale_id=$(b_id)
+bjson=$(batchssh merge-change --close "$ch2",1)
+# Nothing moved, so --rebuild-if-stale submits as usual
+bjson=$(batchssh submit --force --rebuild-if-stale "$(b_id)")
+result "$GROUP current" "$bjson"
+tip=$(remote_show "$DEST_REF")
+result_out "$GROUP current dest_commit" "$(d_sha1 "$(b_destination 0)")" "$tip"
+! out=$(batchssh submit --force --rebuild-if-stale "$stale_id")
+result "$GROUP" "$out"
+echo "$out" | grep -q "has been rebuilt"
+result "$GROUP message" "$out"
+bjson=$(echo "$out" | head -1)
+dest1=$(b_destination 0)
+sha1=$(d_sha1 "$dest1")
+result_out "$GROUP base_sha1" "$tip" "$(d_base "$dest1")"
+result_out "$GROUP parents" "$tip $(change_rev "$ch1")" "$(get_ref_parents "$(d_download "$dest1")")"
+result_out "$GROUP dest_commit" "$tip" "$(remote_show "$DEST_REF")"
+bjson=$(batchssh submit --force "$stale_id")
+result "$GROUP submit" "$bjson"
+result_out "$GROUP submit dest_commit" "$sha1" "$(remote_show "$DEST_REF")"
+result_out "$GROUP submit change_state" "MERGED" \
+    "$(query_by "$(query "$ch1")" "status")"
+
+
+setupGroup "ls-batches ids-only" "List Batches --ids-only" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+bjson=$(batchssh merge-change --close "$ch1",1)
+id=$(b_id)
+list=$(batchssh ls-batches "NOT is:expired")
+echo "$list" | grep -q '"destinations"'
+result "$GROUP query full" "$list"
+list=$(batchssh ls-batches --ids-only "NOT is:expired")
+echo "$list" | grep '"id"' | grep -q "$id"
+result "$GROUP query" "$list"
+! echo "$list" | grep -q '"destinations"'
+result "$GROUP query ids" "$list"
+! out=$(batchssh ls-batches --ids-only --include-batch-info)
+result "$GROUP include-batch-info" "$out"
+
+
+setupGroup "ls-batches query" "List Batches with query operators" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+bjson=$(batchssh merge-change --close "$ch1",1)
+id=$(b_id)
+owner=$(echo "$bjson" | python -c "import json,sys;o=json.load(sys.stdin)['owner'];print o.get('id') if isinstance(o,dict) else o")
+yesterday=$(date -u -d yesterday +%Y-%m-%d)
+tomorrow=$(date -u -d tomorrow +%Y-%m-%d)
+for q in "state:closed" "owner:$owner" "project:$PROJECT" "ref:$DEST_REF" \
+        "branch:$REF_BRANCH" "after:$yesterday" "before:$tomorrow" "age:0s" \
+        "state:closed project:$PROJECT branch:$REF_BRANCH" ; do
+    list=$(batchssh ls-batches --ids-only "$q")
+    echo "$list" | grep '"id"' | grep -q "$id"
+    result "$GROUP $q" "$list"
+done
+for q in "state:open" "project:$PROJECT-none" "branch:$REF_BRANCH-none" \
+        "after:$tomorrow" "age:1d" "NOT state:closed" ; do
+    list=$(batchssh ls-batches --ids-only "$q")
+    ! echo "$list" | grep '"id"' | grep -q "$id"
+    result "$GROUP $q excluded" "$list"
+done
+list=$(batchssh ls-batches --ids-only "state:closed limit:1")
+result_out "$GROUP limit:1" "1" "$(json_len "$list")"
+! out=$(batchssh ls-batches "state:bogus")
+result "$GROUP invalid state" "$out"
+! out=$(batchssh ls-batches "age:bogus")
+result "$GROUP invalid age" "$out"
+
+
+setupGroup "ls-batches index" "List Batches from the batch index" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close "$ch1",1)
+id=$(b_id)
+for q in "change:$ch1" "destination:$PROJECT/$DEST_REF" "change:$ch1 state:closed" ; do
+    list=$(batchssh ls-batches --ids-only "$q")
+    echo "$list" | grep '"id"' | grep -q "$id"
+    result "$GROUP $q" "$list"
+done
+list=$(batchssh ls-batches "change:$ch1")
+result_out "$GROUP change:$ch1 count" "1" "$(json_len "$list")"
+list=$(batchssh ls-batches --ids-only "change:$ch2")
+result_out "$GROUP change:$ch2 none" "[]" "$list"
+q batchssh delete "$id"
+list=$(batchssh ls-batches --ids-only "change:$ch1")
+result_out "$GROUP deleted" "[]" "$list"
+! out=$(batchssh ls-batches "destination:$DEST_REF")
+result "$GROUP invalid destination" "$out"
+
+
+setupGroup "submit parallel" "Batch Submit --parallel" # -------------
+
+BRANCH2=batch-test-$RANDOM
+mygit fetch -q "$GITURL" "$REF_BRANCH" && q mygit push "$GITURL" FETCH_HEAD:refs/heads/$BRANCH2
+result "$GROUP create $BRANCH2"
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$BRANCH2" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close "$ch1",1 "$ch2",1)
+result_out "$GROUP destinations" "2" "$(json_len "$(json_jval_by_key "$bjson" destinations)")"
+id=$(b_id)
+declare -A sha1s
+for d in 0 1 ; do
+    dest=$(b_destination $d)
+    sha1s[$(d_ref "$dest")]=$(d_sha1 "$dest")
+done
+bjson=$(batchssh submit --force --parallel "$id")
+result "$GROUP" "$bjson"
+result_out "$GROUP state" "DELETED" "$(b_state)"
+for ref in "$DEST_REF" refs/heads/$BRANCH2 ; do
+    result_out "$GROUP dest_commit $ref" "${sha1s[$ref]}" "$(remote_show "$ref")"
+done
+for ch in "$ch1" "$ch2" ; do
+    result_out "$GROUP change_state $ch" "MERGED" "$(query_by "$(query "$ch")" "status")"
+done
+
+
+setupGroup "submit queue" "Concurrent submits through the submit queue" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close "$ch1",1) ; id1=$(b_id) ; sha1=$(d_sha1 "$(b_destination 0)")
+bjson=$(batchssh merge-change --close "$ch2",1) ; id2=$(b_id) ; sha2=$(d_sha1 "$(b_destination 0)")
+# Both batches are on the same tip, the queue must let exactly one of them win
+out1=$(mktemp) ; out2=$(mktemp)
+batchssh submit --force "$id1" > "$out1" 2>&1 & pid1=$!
+batchssh submit --force "$id2" > "$out2" 2>&1 & pid2=$!
+wait $pid1 ; rtn1=$?
+wait $pid2 ; rtn2=$?
+tip=$(remote_show "$DEST_REF")
+if [ $rtn1 -eq 0 ] ; then won=$sha1 ; lost=$out2 ; lost_rtn=$rtn2
+else won=$sha2 ; lost=$out1 ; lost_rtn=$rtn1 ; fi
+result_out "$GROUP one winner" "1" "$(( (rtn1 == 0) + (rtn2 == 0) ))"
+result_out "$GROUP dest_commit" "$won" "$tip"
+[ $lost_rtn -ne 0 ] && grep -q "is stale" "$lost"
+result "$GROUP stale" "$(cat "$out1" "$out2")"
+rm -f "$out1" "$out2"
+
+# Batches on different branches do not wait for each other
+BRANCH3=batch-test-$RANDOM
+mygit fetch -q "$GITURL" "$REF_BRANCH" && q mygit push "$GITURL" FETCH_HEAD:refs/heads/$BRANCH3
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$BRANCH3" "$FILE_B") || exit
+bjson=$(batchssh merge-change --close "$ch1",1) ; id1=$(b_id) ; sha1=$(d_sha1 "$(b_destination 0)")
+bjson=$(batchssh merge-change --close "$ch2",1) ; id2=$(b_id) ; sha2=$(d_sha1 "$(b_destination 0)")
+q batchssh submit --force "$id1" & pid1=$!
+q batchssh submit --force "$id2" & pid2=$!
+wait $pid1 ; rtn1=$?
+wait $pid2 ; rtn2=$?
+[ $rtn1 -eq 0 ] && [ $rtn2 -eq 0 ]
+result "$GROUP other branches"
+result_out "$GROUP other branches $DEST_REF" "$sha1" "$(remote_show "$DEST_REF")"
+result_out "$GROUP other branches $BRANCH3" "$sha2" "$(remote_show "refs/heads/$BRANCH3")"
+
+
+setupGroup "merge-change batch" "Merge Change --save and --batch" # -------------
+
+ch1=$(create_change "$REF_BRANCH" "$FILE_A") || exit
+ch2=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+bjson=$(batchssh merge-change --save "$ch1",1)
+result "$GROUP save" "$bjson"
+id=$(b_id)
+result_out "$GROUP save state" "OPEN" "$(b_state)"
+sha1=$(d_sha1 "$(b_destination 0)")
+open_ref=refs/batch/open/$id/$DEST_REF
+result_out "$GROUP save open ref" "$sha1" "$(remote_show "$open_ref")"
+bjson=$(batchssh merge-change --batch "$id" "$ch2",1)
+result "$GROUP batch" "$bjson"
+dest1=$(b_destination 0)
+result_out "$GROUP batch state" "OPEN" "$(b_state)"
+result_out "$GROUP batch changes" "2" "$(json_len "$(d_changes "$dest1")")"
+result_out "$GROUP batch parents" "$sha1 $(change_rev "$ch2")" \
+    "$(get_ref_parents "$open_ref")"
+sha1=$(d_sha1 "$dest1")
+result_out "$GROUP batch open ref" "$sha1" "$(remote_show "$open_ref")"
+ch3=$(create_change "$REF_BRANCH" "$FILE_B") || exit
+! out=$(batchssh merge-change --batch "$id" --strategy cherry-pick "$ch3",1)
+result "$GROUP batch other strategy" "$out"
+bjson=$(batchssh merge-change --batch "$id" --close "$ch1",1 "$ch2",1)
+result "$GROUP close" "$bjson"
+dest1=$(b_destination 0)
+result_out "$GROUP close state" "CLOSED" "$(b_state)"
+result_out "$GROUP close changes" "2" "$(json_len "$(d_changes "$dest1")")"
+result_out "$GROUP close download_ref" "$sha1" "$(remote_show "$(d_download "$dest1")")"
+result_out "$GROUP close open ref" "" "$(remote_show "$open_ref")"
+! out=$(batchssh merge-change --batch "$id" "$ch2",1)
+result "$GROUP closed batch" "$out"
+bjson=$(batchssh submit --force "$id")
+result "$GROUP submit" "$bjson"
+result_out "$GROUP submit dest_commit" "$sha1" "$(remote_show "$DEST_REF")"
+
+
 exit $RESULT